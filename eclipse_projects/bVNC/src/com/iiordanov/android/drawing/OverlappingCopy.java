@@ -31,6 +31,28 @@ public class OverlappingCopy
         stepDestRect.offset(deltaX,deltaY);
         bitmapBackedCanvas.drawBitmap(data, stepSourceRect, stepDestRect, paint);
     }
+    /**
+     * Copies a rectangle of pixels within an array holding an image, where source and destination
+     * may overlap.  Rows are copied bottom up when the destination is below the source; within a
+     * row, System.arraycopy already copies as if through a temporary buffer.
+     * @param pixels Image data
+     * @param stride Offset from one row of the image to the next
+     * @param sourceOffset Offset of the top left pixel of the source
+     * @param destOffset Offset of the top left pixel of the destination
+     * @param w Width of the rectangle
+     * @param h Height of the rectangle
+     */
+    public static void Copy(int[] pixels, int stride, int sourceOffset, int destOffset, int w, int h)
+    {
+        if (destOffset > sourceOffset)
+        {
+            sourceOffset += (h - 1) * stride;
+            destOffset += (h - 1) * stride;
+            stride = -stride;
+        }
+        for (int j = 0; j < h; j++, sourceOffset += stride, destOffset += stride)
+            System.arraycopy(pixels, sourceOffset, pixels, destOffset, w);
+    }
     public static void Copy(Bitmap data, Canvas bitmapBackedCanvas, Paint paint, Rect source, int destX, int destY)
     {
         Copy(data,bitmapBackedCanvas,paint,source,destX,destY,ocRectPool);
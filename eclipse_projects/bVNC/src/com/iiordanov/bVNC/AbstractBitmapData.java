@@ -20,6 +20,8 @@
 
 package com.iiordanov.bVNC;
 
+import java.util.Arrays;
+
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -182,9 +184,40 @@ abstract public class AbstractBitmapData {
      */
     public abstract void copyRect(int sx, int sy, int dx, int dy, int w, int h);
 
+    /**
+     * Fill a rectangle with one color in the bitmapPixels array, and update the bitmap with it once.
+     * Solid areas from all encodings come through here, so the array and the bitmap always agree.
+     * @param x Top left x
+     * @param y Top left y
+     * @param w width (pixels)
+     * @param h height (pixels)
+     * @param pix Color
+     */
     public void fillRect(int x, int y, int w, int h, int pix) {
-        paint.setColor(pix);
-        drawRect(x, y, w, h, paint);
+        fillPixels(x, y, w, h, pix);
+        updateBitmap(x, y, w, h);
+    }
+
+    /**
+     * Fill a rectangle with one color in the bitmapPixels array only, for callers which fill many
+     * small rectangles and then update the bitmap with the area around them once.
+     * @param x Top left x
+     * @param y Top left y
+     * @param w width (pixels)
+     * @param h height (pixels)
+     * @param pix Color
+     */
+    void fillPixels(int x, int y, int w, int h, int pix) {
+        int offset = offset(x, y);
+        // Most Hextile and RRE subrectangles are a few pixels wide, too small for Arrays.fill to pay off.
+        if (w > 16) {
+            for (int j = 0; j < h; j++, offset += bitmapwidth)
+                Arrays.fill(bitmapPixels, offset, offset + w, pix);
+        } else {
+            for (int j = 0; j < h; j++, offset += bitmapwidth - w)
+                for (int i = 0; i < w; i++)
+                    bitmapPixels[offset++] = pix;
+        }
     }
 
     public void imageRect(int x, int y, int w, int h, int[] pix) {
@@ -236,6 +269,15 @@ abstract public class AbstractBitmapData {
      */
     abstract void syncScroll();
 
+    /**
+     * Called by the decoder once all rectangles of a framebuffer update have been drawn.
+     * Implementations that defer showing changes until the end of an update do so here.
+     * @return true if pixels were uploaded into a bitmap.
+     */
+    boolean updateDone() {
+        return false;
+    }
+
     /**
      * Release resources
      */
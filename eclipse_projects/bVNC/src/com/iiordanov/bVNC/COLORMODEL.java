@@ -53,6 +53,23 @@ public enum COLORMODEL {
         }
     }
     
+    /**
+     * @return The color model with a pixel format of the given depth. Greyscale models
+     * cannot be told apart from color ones by depth, so the color one is returned.
+     */
+    public static COLORMODEL fromDepth(int depth) {
+        switch (depth) {
+        case 8:
+            return C256;
+        case 6:
+            return C64;
+        case 3:
+            return C8;
+        default:
+            return C24bit;
+        }
+    }
+
     public String nameString()
     {
         return super.toString();
@@ -20,11 +20,17 @@
 
 package com.iiordanov.bVNC;
 
+import java.util.Arrays;
+
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 
+import com.iiordanov.android.drawing.OverlappingCopy;
+import com.iiordanov.android.drawing.RectList;
+import com.iiordanov.util.ObjectPool;
+
 class CompactBitmapData extends AbstractBitmapData {
     /**
      * Multiply this times total number of pixels to get estimate of process size with all buffers plus
@@ -34,6 +40,21 @@ class CompactBitmapData extends AbstractBitmapData {
     boolean isSpice = false;
     Bitmap.Config cfg = Bitmap.Config.RGB_565;
     
+    // When deferring uploads, all drawing goes to bitmapPixels, and the areas changed are uploaded
+    // into the bitmap together at the end of each update. Once there are more than MAX_DIRTY_RECTS
+    // separate areas, their bounding box is uploaded instead.
+    private static final int MAX_DIRTY_RECTS = 16;
+    private boolean deferUploads = false;
+    private ObjectPool<Rect> dirtyPool = new ObjectPool<Rect>() {
+        @Override
+        protected Rect itemForPool() {
+            return new Rect();
+        }
+    };
+    private RectList dirtyList = new RectList(dirtyPool);
+    private Rect dirtyBounds = new Rect();
+    private Rect dirtyRect = new Rect();
+    
     class CompactBitmapDrawable extends AbstractBitmapDrawable {
         
         CompactBitmapDrawable()    {
@@ -74,6 +95,16 @@ class CompactBitmapData extends AbstractBitmapData {
         drawable.startDrawing();
     }
 
+    /**
+     * Makes bitmapPixels hold the whole framebuffer, and uploads changes into the bitmap once per
+     * update rather than once per rectangle. Only for protocols which draw through this class and
+     * call updateDone(), which rules out RDP and SPICE, as they draw into the bitmap directly.
+     * Must be set before anything is drawn.
+     */
+    void setDeferUploads(boolean deferUploads) {
+        this.deferUploads = deferUploads;
+    }
+
     @Override
     public boolean validDraw(int x, int y, int w, int h) {
         return true;
@@ -97,16 +128,52 @@ class CompactBitmapData extends AbstractBitmapData {
      */
     @Override
     public void updateBitmap(int x, int y, int w, int h) {
+        if (deferUploads) {
+            dirtyRect.set(x, y, x + w, y + h);
+            dirtyBounds.union(dirtyRect);
+            if (dirtyList.getSize() < MAX_DIRTY_RECTS)
+                dirtyList.add(dirtyRect);
+            return;
+        }
         synchronized (mbitmap) {
             mbitmap.setPixels(bitmapPixels, offset(x,y), bitmapwidth, x, y, w, h);
         }
     }
 
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#updateDone()
+     */
+    @Override
+    boolean updateDone() {
+        if (dirtyBounds.isEmpty())
+            return false;
+
+        synchronized (mbitmap) {
+            if (dirtyList.getSize() >= MAX_DIRTY_RECTS) {
+                Rect r = dirtyBounds;
+                mbitmap.setPixels(bitmapPixels, offset(r.left, r.top), bitmapwidth, r.left, r.top, r.width(), r.height());
+            } else {
+                for (int i = 0; i < dirtyList.getSize(); i++) {
+                    Rect r = dirtyList.get(i);
+                    mbitmap.setPixels(bitmapPixels, offset(r.left, r.top), bitmapwidth, r.left, r.top, r.width(), r.height());
+                }
+            }
+        }
+        dirtyList.clear();
+        dirtyBounds.setEmpty();
+        return true;
+    }
+
     /* (non-Javadoc)
      * @see com.iiordanov.bVNC.AbstractBitmapData#updateBitmap(Bitmap, int, int, int, int)
      */
     @Override
     public void updateBitmap(Bitmap b, int x, int y, int w, int h) {
+        if (deferUploads) {
+            b.getPixels(bitmapPixels, offset(x, y), bitmapwidth, 0, 0, w, h);
+            updateBitmap(x, y, w, h);
+            return;
+        }
         synchronized (mbitmap) {
             memGraphics.drawBitmap(b, x, y, null);
         }
@@ -117,37 +184,19 @@ class CompactBitmapData extends AbstractBitmapData {
      */
     @Override
     public void copyRect(int sx, int sy, int dx, int dy, int w, int h) {
-        int srcOffset, dstOffset;
-        int dstH = h;
-        int dstW = w;
-        
-        int startSrcY, endSrcY, dstY, deltaY;
-        if (sy > dy) {
-            startSrcY = sy;
-            endSrcY = sy + dstH;
-            dstY = dy;
-            deltaY = +1;
-        } else {
-            startSrcY = sy + dstH - 1;
-            endSrcY = sy - 1;
-            dstY = dy + dstH - 1;
-            deltaY = -1;
-        }
-        for (int y = startSrcY; y != endSrcY; y += deltaY) {
-            srcOffset = offset(sx, y);
-            dstOffset = offset(dx, dstY);
-            try {
+        try {
+            // Unless uploads are deferred, only the bitmap is sure to hold the source, so read it back once.
+            if (!deferUploads) {
                 synchronized (mbitmap) {
-                    mbitmap.getPixels(bitmapPixels, srcOffset, bitmapwidth, sx-xoffset, y-yoffset, dstW, 1);
+                    mbitmap.getPixels(bitmapPixels, offset(sx, sy), bitmapwidth, sx-xoffset, sy-yoffset, w, h);
                 }
-                System.arraycopy(bitmapPixels, srcOffset, bitmapPixels, dstOffset, dstW);
-            } catch (Exception e) {
-                // There was an index out of bounds exception, but we continue copying what we can. 
-                e.printStackTrace();
             }
-            dstY += deltaY;
+            OverlappingCopy.Copy(bitmapPixels, bitmapwidth, offset(sx, sy), offset(dx, dy), w, h);
+        } catch (Exception e) {
+            // There was an index out of bounds exception, but we continue.
+            e.printStackTrace();
         }
-        updateBitmap(dx, dy, dstW, dstH);
+        updateBitmap(dx, dy, w, h);
     }
 
     /* (non-Javadoc)
@@ -155,6 +204,15 @@ class CompactBitmapData extends AbstractBitmapData {
      */
     @Override
     void drawRect(int x, int y, int w, int h, Paint paint) {
+        if (deferUploads) {
+            int color = paint.getColor();
+            int offset = offset(x, y);
+            for (int j = 0; j < h; j++, offset += bitmapwidth) {
+                Arrays.fill(bitmapPixels, offset, offset + w, color);
+            }
+            updateBitmap(x, y, w, h);
+            return;
+        }
         synchronized (mbitmap) {
             memGraphics.drawRect(x, y, x + w, y + h, paint);
         }
@@ -185,6 +243,8 @@ class CompactBitmapData extends AbstractBitmapData {
             bitmapPixels = new int[bitmapwidth * bitmapheight];
             mbitmap      = Bitmap.createBitmap(bitmapwidth, bitmapheight, cfg);
             memGraphics  = new Canvas(mbitmap);
+            dirtyList.clear();
+            dirtyBounds.setEmpty();
             drawable     = createDrawable();
             drawable.startDrawing();
         }
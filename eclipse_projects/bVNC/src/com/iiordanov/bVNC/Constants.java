@@ -201,6 +201,19 @@ public class Constants {
     public static final String forceLandscapeTag = "forceLandscape";
     public static final String rAltAsIsoL3ShiftTag = "rAltAsIsoL3Shift";
     public static final String leftHandedModeTag = "leftHandedModeTag";
+    public static final String pipelinedDecodingTag = "pipelinedDecoding";
+    public static final String recordSessionsTag = "recordSessions";
+    public static final String adaptiveQualityTag = "adaptiveQuality";
+    public static final String offHeapFramebufferTag = "offHeapFramebuffer";
+    public static final String pagedFramebufferTag = "pagedFramebuffer";
+    public static final String pointerEventRateTag = "pointerEventRate";
+    public static final String pasteLongTextTag = "pasteLongText";
+    
+    // Pointer motion events sent per second unless set otherwise, 0 for no limit.
+    public static final int defaultPointerEventRate = 60;
+    
+    // VNC addresses starting with this are paths to recorded sessions to be played back.
+    public static final String sessionPlaybackPrefix = "fbs://";
     
     public static final String ACTION_USB_PERMISSION = "com.iiordanov.aSPICE.USB_PERMISSION";
     public static final int usbDeviceTimeout = 5000;
@@ -26,17 +26,19 @@
 package com.iiordanov.bVNC;
 
 import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
+import com.iiordanov.android.drawing.RectList;
 import com.iiordanov.bVNC.input.RemotePointer;
+import com.iiordanov.util.ObjectPool;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
-import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.util.Log;
 
@@ -45,13 +47,14 @@ public class Decoder {
 
     // Color Model settings
     private COLORMODEL pendingColorModel = COLORMODEL.C24bit;
+    // Color model asked of the server, but not decoded in until the server is known to send it.
+    private COLORMODEL requestedColorModel = null;
     private COLORMODEL colorModel = null;
     private int bytesPerPixel = 0;
     private int[] colorPalette = null;
 
     // Tight decoder's data.
     private Inflater[] tightInflaters  = new Inflater[4];
-    private Paint handleTightRectPaint = new Paint();
     private byte[] solidColorBuf       = new byte[3];
     private byte[] tightPalette8       = new byte[2];
     private int[]  tightPalette24      = new int[256];
@@ -59,7 +62,11 @@ public class Decoder {
     private byte[] uncompDataBuf       = new byte[RfbProto.TightMinToCompress*3];
     private byte[] zlibData            = new byte[4096];
     private byte[] inflBuf             = new byte[8192];
+    private int[]  gradientRow         = new int[0];
     private BitmapFactory.Options bitmapopts = new BitmapFactory.Options();
+    private Bitmap[] tightBitmaps      = new Bitmap[4];
+    private int[] tightBitmapKeys      = new int[4];
+    private int nextTightBitmap        = 0;
     private boolean valid, useGradient;
     private int c, dx, dy, offset, boffset, idx, stream_id, comp_ctl, numColors, rowSize, dataSize, jpegDataLen;
 
@@ -67,7 +74,7 @@ public class Decoder {
     private byte[] zrleBuf;
     private int[] zrleTilePixels;
     private ZlibInStream zrleInStream;
-    private Paint handleZRLERectPaint   = new Paint();
+    private ParallelZrleDecoder parallelZrleDecoder;
     private int[] handleZRLERectPalette = new int[128];
     private byte[] readPixelsBuffer     = new byte[128];
 
@@ -75,33 +82,55 @@ public class Decoder {
     private byte[] zlibBuf;
     private Inflater zlibInflater;
     private byte[] handleZlibRectBuffer = new byte[128];
+    private IntBuffer handleZlibRectView;
 
     // RRE decoder's data.
-    private Paint handleRREPaint         = new Paint();
     private byte[] bg_buf                = new byte[4];
     private byte[] rre_buf               = new byte[128];
 
     // Raw decoder's data.
     private byte[] handleRawRectBuffer   = new byte[128];
+    private IntBuffer handleRawRectView;
 
     // Hextile decoder's data.
     // These colors should be kept between handleHextileSubrect() calls.
     private int hextile_bg, hextile_fg;
-    private Paint handleHextileSubrectPaint = new Paint();
     private byte[] backgroundColorBuffer    = new byte[4];
     
+    // Where time spent inflating and uploading pixels is recorded. It is added up over each
+    // FramebufferUpdate. Work done once per rectangle is always timed, while work done per tile or
+    // per buffer of the ZRLE stream is only timed if the metrics ask for it at the start of the update.
+    private SessionMetrics metrics = new SessionMetrics();
+    private boolean detailedTiming = false;
+    private long inflates = 0;
+    private long inflateNanos = 0;
+    private long uploads = 0;
+    private long uploadNanos = 0;
+
+    // Areas changed during the current FramebufferUpdate, which are invalidated together at its end.
+    // Once there are more than MAX_DAMAGE_RECTS separate areas, their bounding box is invalidated instead.
+    private static final int MAX_DAMAGE_RECTS = 16;
+    private ObjectPool<Rect> damagePool = new ObjectPool<Rect>() {
+        @Override
+        protected Rect itemForPool() {
+            return new Rect();
+        }
+    };
+    private RectList damageList = new RectList(damagePool);
+    private Rect damageBounds = new Rect();
+    private Rect damageRect = new Rect();
     private AbstractBitmapData bitmapData;
     private RemoteCanvas vncCanvas;
 
 
     public Decoder (RemoteCanvas v) {
-        handleRREPaint.setStyle(Style.FILL);
-        handleTightRectPaint.setStyle(Style.FILL);
         bitmapopts.inPurgeable      = false;
         bitmapopts.inDither         = false;
         bitmapopts.inTempStorage    = new byte[32768];
         bitmapopts.inPreferredConfig= Bitmap.Config.RGB_565;
         bitmapopts.inScaled         = false;
+        bitmapopts.inMutable        = true;
+        bitmapopts.inSampleSize     = 1;
         vncCanvas = v;
     }
     
@@ -109,17 +138,39 @@ public class Decoder {
         bitmapData = b;
     }
     
+    void setSessionMetrics (SessionMetrics m) {
+        metrics = m;
+    }
+    
     void setPixelFormat(RfbProto rfb) throws IOException {
+        requestPixelFormat(rfb);
+        usePixelFormat(rfb);
+    }
+    
+    /**
+     * Asks the server for the pending color model, while still decoding in the current one.
+     */
+    void requestPixelFormat(RfbProto rfb) throws IOException {
         pendingColorModel.setPixelFormat(rfb);
-        bytesPerPixel = pendingColorModel.bpp();
-        colorPalette = pendingColorModel.palette();
-        colorModel = pendingColorModel;
+        requestedColorModel = pendingColorModel;
         pendingColorModel = null;
     }
     
+    /**
+     * Starts decoding in the color model last asked of the server.
+     */
+    void usePixelFormat(RfbProto rfb) {
+        rfb.usePixelFormat();
+        bytesPerPixel = requestedColorModel.bpp();
+        colorPalette = requestedColorModel.palette();
+        colorModel = requestedColorModel;
+        requestedColorModel = null;
+    }
+    
     public void setColorModel(COLORMODEL cm) {
         // Only update if color model changes
-        if (colorModel == null || !colorModel.equals(cm))
+        COLORMODEL current = (requestedColorModel != null) ? requestedColorModel : colorModel;
+        if (current == null || !current.equals(cm))
             pendingColorModel = cm;
     }
     
@@ -130,6 +181,55 @@ public class Decoder {
     public boolean isChangedColorModel() {
         return (pendingColorModel != null);
     }
+    
+    /**
+     * @return true if a color model was asked of the server, but is not decoded in yet.
+     */
+    public boolean isRequestedColorModel() {
+        return (requestedColorModel != null);
+    }
+
+    /**
+     * Decodes a rectangle in any of the encodings handled by the decoder: the pixel encodings and
+     * the cursor shapes. Used by RfbProto, and by anything else replaying server messages.
+     * @return false if the encoding is not one of them, and is left for the caller to handle.
+     */
+    boolean handleRect(RfbProto rfb, int encoding, int x, int y, int w, int h) throws Exception {
+        switch (encoding) {
+        case RfbProto.EncodingTight:
+        case RfbProto.EncodingTightPng:
+            handleTightRect(rfb, x, y, w, h);
+            break;
+        case RfbProto.EncodingXCursor:
+        case RfbProto.EncodingRichCursor:
+            handleCursorShapeUpdate(rfb, encoding, x, y, w, h);
+            break;
+        case RfbProto.EncodingCopyRect:
+            handleCopyRect(rfb, x, y, w, h);
+            break;
+        case RfbProto.EncodingRaw:
+            handleRawRect(rfb, x, y, w, h);
+            break;
+        case RfbProto.EncodingRRE:
+            handleRRERect(rfb, x, y, w, h);
+            break;
+        case RfbProto.EncodingCoRRE:
+            handleCoRRERect(rfb, x, y, w, h);
+            break;
+        case RfbProto.EncodingHextile:
+            handleHextileRect(rfb, x, y, w, h);
+            break;
+        case RfbProto.EncodingZRLE:
+            handleZRLERect(rfb, x, y, w, h);
+            break;
+        case RfbProto.EncodingZlib:
+            handleZlibRect(rfb, x, y, w, h);
+            break;
+        default:
+            return false;
+        }
+        return true;
+    }
 
     void handleRawRect(RfbProto rfb, int x, int y, int w, int h) throws IOException {
         handleRawRect(rfb, x, y, w, h, true);
@@ -142,16 +242,13 @@ public class Decoder {
             // 1 byte per pixel. Use palette lookup table.
           if (w > handleRawRectBuffer.length) {
               handleRawRectBuffer = new byte[w];
+              handleRawRectView = null;
           }
-            int i, offset;
             for (int dy = y; dy < y + h; dy++) {
                 rfb.readFully(handleRawRectBuffer, 0, w);
                 if ( ! valid)
                     continue;
-                offset = bitmapData.offset(x, dy);
-                for (i = 0; i < w; i++) {
-                    pixels[offset + i] = colorPalette[0xFF & handleRawRectBuffer[i]];
-                }
+                PixelConverter.fromIndexed(handleRawRectBuffer, 0, colorPalette, pixels, bitmapData.offset(x, dy), w);
             }
         } else {
             // 4 bytes per pixel (argb) 24-bit color
@@ -159,28 +256,86 @@ public class Decoder {
             final int l = w * 4;
             if (l>handleRawRectBuffer.length) {
                 handleRawRectBuffer = new byte[l];
+                handleRawRectView = null;
             }
-            int i, offset;
+            if (handleRawRectView == null)
+                handleRawRectView = PixelConverter.bgrxView(handleRawRectBuffer);
             for (int dy = y; dy < y + h; dy++) {
                 rfb.readFully(handleRawRectBuffer, 0, l);
                 if ( ! valid)
                     continue;
-                offset = bitmapData.offset(x, dy);
-                for (i = 0; i < w; i++) {
-                  final int idx = i*4;
-                    pixels[offset + i] = // 0xFF << 24 |
-                    (handleRawRectBuffer[idx + 2] & 0xff) << 16 | (handleRawRectBuffer[idx + 1] & 0xff) << 8 | (handleRawRectBuffer[idx] & 0xff);
-                }
+                PixelConverter.fromBGRX(handleRawRectView, 0, pixels, bitmapData.offset(x, dy), w);
             }
         }
         
         if ( ! valid)
             return;
 
-        bitmapData.updateBitmap(x, y, w, h);
+        updateBitmap(x, y, w, h);
 
         if (paint)
-            vncCanvas.reDraw(x, y, w, h);
+            damage(x, y, w, h);
+    }
+
+    //
+    // Upload an area of bitmapPixels into the bitmap, timing how long it takes.
+    //
+    private void updateBitmap(int x, int y, int w, int h) {
+        long start = System.nanoTime();
+        bitmapData.updateBitmap(x, y, w, h);
+        uploadNanos += System.nanoTime() - start;
+        uploads++;
+    }
+
+    //
+    // Upload a tile of bitmapPixels into the bitmap, timing it only if detailed timing is on.
+    //
+    private void updateTileBitmap(int x, int y, int w, int h) {
+        if (detailedTiming)
+            updateBitmap(x, y, w, h);
+        else
+            bitmapData.updateBitmap(x, y, w, h);
+    }
+
+    //
+    // Record that an area of the framebuffer has changed and needs to be redrawn.
+    //
+    private void damage(int x, int y, int w, int h) {
+        damageRect.set(x, y, x + w, y + h);
+        damageBounds.union(damageRect);
+        if (damageList.getSize() < MAX_DAMAGE_RECTS)
+            damageList.add(damageRect);
+    }
+
+    /**
+     * Invalidates everything changed since the last call with as few redraws as possible.
+     * Called once at the end of every FramebufferUpdate.
+     */
+    void flushDamage() {
+        long start = System.nanoTime();
+        if (bitmapData.updateDone()) {
+            uploadNanos += System.nanoTime() - start;
+            uploads++;
+        }
+        metrics.addDecodeTimes(inflates, inflateNanos, uploads, uploadNanos);
+        inflates = inflateNanos = uploads = uploadNanos = 0;
+        detailedTiming = metrics.isDetailedTiming();
+        if (zrleInStream != null)
+            zrleInStream.timing = detailedTiming;
+
+        if (damageBounds.isEmpty())
+            return;
+
+        if (damageList.getSize() >= MAX_DAMAGE_RECTS) {
+            vncCanvas.reDraw(damageBounds.left, damageBounds.top, damageBounds.width(), damageBounds.height());
+        } else {
+            for (int i = 0; i < damageList.getSize(); i++) {
+                Rect r = damageList.get(i);
+                vncCanvas.reDraw(r.left, r.top, r.width(), r.height());
+            }
+        }
+        damageList.clear();
+        damageBounds.setEmpty();
     }
 
     //
@@ -194,7 +349,20 @@ public class Decoder {
             return;
 
         bitmapData.copyRect(rfb.copyRectSrcX, rfb.copyRectSrcY, x, y, w, h);
-        vncCanvas.reDraw(x, y, w, h);
+        damage(x, y, w, h);
+    }
+
+    //
+    // Fill a subrectangle sent by the server, clipped to the rectangle or tile x, y, w, h it
+    // belongs to. Out of range, it would wrap into the next row or run off bitmapPixels.
+    //
+    private void fillSubrect(int sx, int sy, int sw, int sh, int x, int y, int w, int h, int pixel) {
+        int left   = Math.max(sx, x);
+        int top    = Math.max(sy, y);
+        int right  = Math.min(sx + sw, x + w);
+        int bottom = Math.min(sy + sh, y + h);
+        if (left < right && top < bottom)
+            bitmapData.fillPixels(left, top, right - left, bottom - top, pixel);
     }
 
     //
@@ -211,9 +379,8 @@ public class Decoder {
         } else {
             pixel = Color.rgb(bg_buf[2] & 0xFF, bg_buf[1] & 0xFF, bg_buf[0] & 0xFF);
         }
-        handleRREPaint.setColor(pixel);
         if ( valid)
-            bitmapData.drawRect(x, y, w, h, handleRREPaint);
+            bitmapData.fillPixels(x, y, w, h, pixel);
 
         int len = nSubrects * (bytesPerPixel + 8);
         if (len > rre_buf.length)
@@ -238,11 +405,11 @@ public class Decoder {
             sw = ((rre_buf[i] & 0xff) << 8) + (rre_buf[i+1] & 0xff); i+=2;
             sh = ((rre_buf[i] & 0xff) << 8) + (rre_buf[i+1] & 0xff); i+=2;
 
-            handleRREPaint.setColor(pixel);
-            bitmapData.drawRect(sx, sy, sw, sh, handleRREPaint);
+            fillSubrect(sx, sy, sw, sh, x, y, w, h, pixel);
         }
 
-        vncCanvas.reDraw(x, y, w, h);
+        updateBitmap(x, y, w, h);
+        damage(x, y, w, h);
     }
 
     //
@@ -260,11 +427,11 @@ public class Decoder {
         } else {
             pixel = Color.rgb(bg_buf[2] & 0xFF, bg_buf[1] & 0xFF, bg_buf[0] & 0xFF);
         }
-        handleRREPaint.setColor(pixel);
         if ( valid)
-            bitmapData.drawRect(x, y, w, h, handleRREPaint);
+            bitmapData.fillPixels(x, y, w, h, pixel);
 
-        int len = nSubrects * (bytesPerPixel + 8);
+        // Unlike RRE, each subrectangle is a pixel followed by one byte per coordinate.
+        int len = nSubrects * (bytesPerPixel + 4);
         if (len > rre_buf.length)
             rre_buf = new byte[len];
         
@@ -287,11 +454,11 @@ public class Decoder {
             sw = rre_buf[i++] & 0xFF;
             sh = rre_buf[i++] & 0xFF;
 
-            handleRREPaint.setColor(pixel);
-            bitmapData.drawRect(sx, sy, sw, sh, handleRREPaint);
+            fillSubrect(sx, sy, sw, sh, x, y, w, h, pixel);
         }
 
-        vncCanvas.reDraw(x, y, w, h);
+        updateBitmap(x, y, w, h);
+        damage(x, y, w, h);
     }
 
     //
@@ -314,10 +481,9 @@ public class Decoder {
 
                 handleHextileSubrect(rfb, tx, ty, tw, th);
             }
-
-            // Finished with a row of tiles, now let's show it.
-            vncCanvas.reDraw(x, y, w, h);
         }
+
+        damage(x, y, w, h);
     }
 
     //
@@ -346,10 +512,8 @@ public class Decoder {
                 hextile_bg = Color.rgb(backgroundColorBuffer[2] & 0xFF, backgroundColorBuffer[1] & 0xFF, backgroundColorBuffer[0] & 0xFF);
             }
         }
-        handleHextileSubrectPaint.setColor(hextile_bg);
-        handleHextileSubrectPaint.setStyle(Paint.Style.FILL);
         if ( valid )
-            bitmapData.drawRect(tx, ty, tw, th, handleHextileSubrectPaint);
+            bitmapData.fillPixels(tx, ty, tw, th, hextile_bg);
 
         // Read the foreground color if specified.
         if ((subencoding & RfbProto.HextileForegroundSpecified) != 0) {
@@ -362,8 +526,11 @@ public class Decoder {
         }
 
         // Done with this tile if there is no sub-rectangles.
-        if ((subencoding & RfbProto.HextileAnySubrects) == 0)
+        if ((subencoding & RfbProto.HextileAnySubrects) == 0) {
+            if ( valid )
+                updateTileBitmap(tx, ty, tw, th);
             return;
+        }
 
         int nSubrects = rfb.is.readUnsignedByte();
         int bufsize = nSubrects * 2;
@@ -379,7 +546,6 @@ public class Decoder {
         if ((subencoding & RfbProto.HextileSubrectsColoured) == 0) {
 
             // Sub-rectangles are all of the same color.
-            handleHextileSubrectPaint.setColor(hextile_fg);
             for (int j = 0; j < nSubrects; j++) {
                 b1 = rre_buf[i++] & 0xFF;
                 b2 = rre_buf[i++] & 0xFF;
@@ -388,7 +554,7 @@ public class Decoder {
                 sw = (b2 >> 4) + 1;
                 sh = (b2 & 0xf) + 1;
                 if ( valid)
-                    bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
+                    fillSubrect(sx, sy, sw, sh, tx, ty, tw, th, hextile_fg);
             }
         } else if (bytesPerPixel == 1) {
 
@@ -401,9 +567,8 @@ public class Decoder {
                 sy = ty + (b1 & 0xf);
                 sw = (b2 >> 4) + 1;
                 sh = (b2 & 0xf) + 1;
-                handleHextileSubrectPaint.setColor(hextile_fg);
                 if ( valid)
-                    bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
+                    fillSubrect(sx, sy, sw, sh, tx, ty, tw, th, hextile_fg);
             }
 
         } else {
@@ -418,12 +583,14 @@ public class Decoder {
                 sy = ty + (b1 & 0xf);
                 sw = (b2 >> 4) + 1;
                 sh = (b2 & 0xf) + 1;
-                handleHextileSubrectPaint.setColor(hextile_fg);
                 if ( valid )
-                    bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
+                    fillSubrect(sx, sy, sw, sh, tx, ty, tw, th, hextile_fg);
             }
 
         }
+
+        if ( valid )
+            updateTileBitmap(tx, ty, tw, th);
     }
 
     //
@@ -431,8 +598,10 @@ public class Decoder {
     //
     void handleZRLERect(RfbProto rfb, int x, int y, int w, int h) throws Exception {
 
-        if (zrleInStream == null)
+        if (zrleInStream == null) {
             zrleInStream = new ZlibInStream();
+            zrleInStream.timing = detailedTiming;
+        }
 
         int nBytes = rfb.is.readInt();
         if (nBytes > 64 * 1024 * 1024)
@@ -448,6 +617,20 @@ public class Decoder {
         
         boolean valid=bitmapData.validDraw(x, y, w, h);
 
+        // Large rectangles are inflated up front and their tiles expanded in parallel.
+        if (ParallelZrleDecoder.isWorthwhile(w, h)) {
+            if (parallelZrleDecoder == null)
+                parallelZrleDecoder = new ParallelZrleDecoder();
+            parallelZrleDecoder.decode(zrleInStream, bitmapData, bytesPerPixel, colorPalette, x, y, w, h, valid);
+            zrleInStream.reset();
+            addInflateTime(zrleInStream);
+            if (valid) {
+                updateBitmap(x, y, w, h);
+                damage(x, y, w, h);
+            }
+            return;
+        }
+
         for (int ty = y; ty < y + h; ty += 64) {
 
             int th = Math.min(y + h - ty, 64);
@@ -465,10 +648,8 @@ public class Decoder {
                 if (palSize == 1) {
                     int pix = handleZRLERectPalette[0];
                     int c = (bytesPerPixel == 1) ? colorPalette[0xFF & pix] : (0xFF000000 | pix);
-                    handleZRLERectPaint.setColor(c);
-                    handleZRLERectPaint.setStyle(Paint.Style.FILL);
                     if ( valid)
-                        bitmapData.drawRect(tx, ty, tw, th, handleZRLERectPaint);
+                        bitmapData.fillRect(tx, ty, tw, th, c);
                     continue;
                 }
 
@@ -491,8 +672,17 @@ public class Decoder {
         }
 
         zrleInStream.reset();
+        addInflateTime(zrleInStream);
 
-        vncCanvas.reDraw(x, y, w, h);
+        damage(x, y, w, h);
+    }
+
+    private void addInflateTime(ZlibInStream zis) {
+        if (zis.inflateNanos == 0)
+            return;
+        inflateNanos += zis.inflateNanos;
+        inflates++;
+        zis.inflateNanos = 0;
     }
 
     //
@@ -514,45 +704,44 @@ public class Decoder {
         zlibInflater.setInput(zlibBuf, 0, nBytes);
         
         int[] pixels=bitmapData.bitmapPixels;
+        long start = System.nanoTime();
 
         if (bytesPerPixel == 1) {
             // 1 byte per pixel. Use palette lookup table.
           if (w > handleZlibRectBuffer.length) {
             handleZlibRectBuffer = new byte[w];
+            handleZlibRectView = null;
           }
-            int i, offset;
             for (int dy = y; dy < y + h; dy++) {
                 zlibInflater.inflate(handleZlibRectBuffer,  0, w);
                 if ( ! valid)
                     continue;
-                offset = bitmapData.offset(x, dy);
-                for (i = 0; i < w; i++) {
-                    pixels[offset + i] = colorPalette[0xFF & handleZlibRectBuffer[i]];
-                }
+                PixelConverter.fromIndexed(handleZlibRectBuffer, 0, colorPalette, pixels, bitmapData.offset(x, dy), w);
             }
         } else {
             // 24-bit color (ARGB) 4 bytes per pixel.
           final int l = w*4;
           if (l > handleZlibRectBuffer.length) {
               handleZlibRectBuffer = new byte[l];
+              handleZlibRectView = null;
           }
-            int i, offset;
+          if (handleZlibRectView == null)
+              handleZlibRectView = PixelConverter.bgrxView(handleZlibRectBuffer);
             for (int dy = y; dy < y + h; dy++) {
                 zlibInflater.inflate(handleZlibRectBuffer, 0, l);
                 if ( ! valid)
                     continue;
-                offset = bitmapData.offset(x, dy);
-                for (i = 0; i < w; i++) {
-                  final int idx = i*4;
-                    pixels[offset + i] = (handleZlibRectBuffer[idx + 2] & 0xFF) << 16 | (handleZlibRectBuffer[idx + 1] & 0xFF) << 8 | (handleZlibRectBuffer[idx] & 0xFF);
-                }
+                PixelConverter.fromBGRX(handleZlibRectView, 0, pixels, bitmapData.offset(x, dy), w);
             }
         }
+        // Timed as a whole, conversion included, rather than paying for a clock read per row.
+        inflateNanos += System.nanoTime() - start;
+        inflates++;
         if ( ! valid)
             return;
-        bitmapData.updateBitmap(x, y, w, h);
+        updateBitmap(x, y, w, h);
 
-        vncCanvas.reDraw(x, y, w, h);
+        damage(x, y, w, h);
     }
 
     private int readPixel(InStream is) throws Exception {
@@ -584,10 +773,7 @@ public class Decoder {
             readPixelsBuffer = new byte[l];
       }
             is.readBytes(readPixelsBuffer, 0, l);
-            for (int i = 0; i < count; i++) {
-              final int idx = i*3;
-                dst[i] = ((readPixelsBuffer[idx + 2] & 0xFF) << 16 | (readPixelsBuffer[idx + 1] & 0xFF) << 8 | (readPixelsBuffer[idx] & 0xFF));
-            }
+            PixelConverter.fromBGR(readPixelsBuffer, 0, dst, 0, count);
         }
     }
 
@@ -600,6 +786,10 @@ public class Decoder {
         if (zrleTilePixels == null || len > zrleTilePixels.length)
             zrleTilePixels = new int[len];
         readPixels(zrleInStream, zrleTilePixels, tw * th); // /
+        if (bytesPerPixel == 1) {
+            for (int i = 0; i < len; i++)
+                zrleTilePixels[i] = colorPalette[zrleTilePixels[i]];
+        }
     }
 
     private void readZrlePackedPixels(int tw, int th, int[] palette, int palSize) throws Exception {
@@ -705,7 +895,7 @@ public class Decoder {
             offsetSrc += w;
         }
 
-        bitmapData.updateBitmap(x, y, w, h);
+        updateTileBitmap(x, y, w, h);
     }
 
     
@@ -714,8 +904,8 @@ public class Decoder {
     //
     void handleTightRect(RfbProto rfb, int x, int y, int w, int h) throws Exception {
         
-        int[] pixels = bitmapData.bitmapPixels;
         valid = bitmapData.validDraw(x, y, w, h);
+        int[] pixels = bitmapData.bitmapPixels;
         comp_ctl = rfb.is.readUnsignedByte();
         
         rowSize = w;
@@ -738,23 +928,24 @@ public class Decoder {
 
         // Handle solid-color rectangles.
         if (comp_ctl == RfbProto.TightFill) {
+            int color;
             if (bytesPerPixel == 1) {
                 idx = rfb.is.readUnsignedByte();
-                handleTightRectPaint.setColor(colorPalette[0xFF & idx]);
+                color = colorPalette[0xFF & idx];
             } else {
                 rfb.readFully(solidColorBuf, 0, 3);
-                handleTightRectPaint.setColor(0xFF000000 | (solidColorBuf[0] & 0xFF) << 16 
-                                                         | (solidColorBuf[1] & 0xFF) << 8 | (solidColorBuf[2] & 0xFF));
+                color = 0xFF000000 | (solidColorBuf[0] & 0xFF) << 16 
+                                   | (solidColorBuf[1] & 0xFF) << 8 | (solidColorBuf[2] & 0xFF);
             }
             if (valid) {
-                bitmapData.drawRect(x, y, w, h, handleTightRectPaint);
-                vncCanvas.reDraw(x, y, w, h);
+                bitmapData.fillRect(x, y, w, h, color);
+                damage(x, y, w, h);
             }
             return;
         }
 
-        if (comp_ctl == RfbProto.TightJpeg) {
-            // Read JPEG data.
+        if (comp_ctl == RfbProto.TightJpeg || comp_ctl == RfbProto.TightPng) {
+            // Read JPEG or PNG data.
             jpegDataLen = rfb.readCompactLen();
             if (jpegDataLen > inflBuf.length) {
                 inflBuf = new byte[2*jpegDataLen];
@@ -763,15 +954,20 @@ public class Decoder {
             if (!valid)
                 return;
 
-            // Decode JPEG data
-            Bitmap tightBitmap = BitmapFactory.decodeByteArray(inflBuf, 0, jpegDataLen, bitmapopts);
-
-            // Copy decoded data into bitmapData and recycle bitmap.
-            //tightBitmap.getPixels(pixels, bitmapData.offset(x, y), bitmapData.bitmapwidth, 0, 0, w, h);
-            bitmapData.updateBitmap(tightBitmap, x, y, w, h);        
-            vncCanvas.reDraw(x, y, w, h);
-            // To avoid running out of memory, recycle bitmap immediately.
-            tightBitmap.recycle();
+            // Decode the image into a reused bitmap and copy its pixels straight into bitmapData.
+            Bitmap tightBitmap = decodeTightBitmap(inflBuf, jpegDataLen, w, h);
+            if (tightBitmap == null) {
+                Log.e(TAG, "Could not decode " + w + "x" + h + " Tight image rectangle");
+                return;
+            }
+            if (tightBitmap.getWidth() < w || tightBitmap.getHeight() < h) {
+                Log.e(TAG, "Tight image of " + tightBitmap.getWidth() + "x" + tightBitmap.getHeight()
+                           + " is too small for a " + w + "x" + h + " rectangle");
+                return;
+            }
+            tightBitmap.getPixels(pixels, bitmapData.offset(x, y), bitmapData.bitmapwidth, 0, 0, w, h);
+            updateBitmap(x, y, w, h);
+            damage(x, y, w, h);
             return;
         }
 
@@ -832,11 +1028,8 @@ public class Decoder {
                 } else {
                     // 3..255 colors (assuming bytesPerPixel == 4).
                     boffset = 0;
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = x; dx < x + w; dx++) {
-                            pixels[offset++] = tightPalette24[uncompDataBuf[boffset++] & 0xFF];
-                        }
+                    for (dy = y; dy < y + h; dy++, boffset += w) {
+                        PixelConverter.fromIndexed(uncompDataBuf, boffset, tightPalette24, pixels, bitmapData.offset(x, dy), w);
                     }
                 }
             } else if (useGradient) {
@@ -846,21 +1039,12 @@ public class Decoder {
                 boffset = 0;
                 // Raw true-color data.
                 if (bytesPerPixel == 1) {
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = 0; dx < w; dx++) {
-                            pixels[offset++] = colorPalette[0xFF & uncompDataBuf[boffset++]];
-                        }                        
+                    for (dy = y; dy < y + h; dy++, boffset += w) {
+                        PixelConverter.fromIndexed(uncompDataBuf, boffset, colorPalette, pixels, bitmapData.offset(x, dy), w);
                     }
                 } else {
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = 0; dx < w; dx++) {
-                            idx = boffset*3; boffset++;
-                            pixels[offset++] =  (uncompDataBuf[idx]     & 0xFF) << 16 | 
-                                                (uncompDataBuf[idx + 1] & 0xFF) << 8  |
-                                                (uncompDataBuf[idx + 2] & 0xFF);
-                        }
+                    for (dy = y; dy < y + h; dy++, boffset += w * 3) {
+                        PixelConverter.fromRGB(uncompDataBuf, boffset, pixels, bitmapData.offset(x, dy), w);
                     }
                 }
             }
@@ -886,7 +1070,10 @@ public class Decoder {
             }
 
             try {
+                long start = System.nanoTime();
                 myInflater.inflate(inflBuf, 0, dataSize);
+                inflateNanos += System.nanoTime() - start;
+                inflates++;
             } catch (DataFormatException e) {
                 e.printStackTrace();
             }
@@ -906,11 +1093,8 @@ public class Decoder {
                 } else {
                     // More than two colors (assuming bytesPerPixel == 4).
                     boffset = 0;
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = x; dx < x + w; dx++) {
-                            pixels[offset++] = tightPalette24[inflBuf[boffset++] & 0xFF];
-                        }
+                    for (dy = y; dy < y + h; dy++, boffset += w) {
+                        PixelConverter.fromIndexed(inflBuf, boffset, tightPalette24, pixels, bitmapData.offset(x, dy), w);
                     }
                 }
             } else if (useGradient) {
@@ -920,30 +1104,69 @@ public class Decoder {
                 boffset = 0;
                 // Compressed true-color data.
                 if (bytesPerPixel == 1) {
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = 0; dx < w; dx++) {
-                            pixels[offset++] = colorPalette[0xFF & inflBuf[boffset++]];
-                        }
+                    for (dy = y; dy < y + h; dy++, boffset += w) {
+                        PixelConverter.fromIndexed(inflBuf, boffset, colorPalette, pixels, bitmapData.offset(x, dy), w);
                     }
                 } else {
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = 0; dx < w; dx++) {
-                            idx = boffset*3; boffset++;
-                            pixels[offset++] =  (inflBuf[idx]     & 0xFF) << 16 |
-                                                (inflBuf[idx + 1] & 0xFF) << 8  |
-                                                (inflBuf[idx + 2] & 0xFF);
-                        }
+                    for (dy = y; dy < y + h; dy++, boffset += w * 3) {
+                        PixelConverter.fromRGB(inflBuf, boffset, pixels, bitmapData.offset(x, dy), w);
                     }
                 }
             }
         }
         
-        bitmapData.updateBitmap(x, y, w, h);
-        vncCanvas.reDraw(x, y, w, h);
+        updateBitmap(x, y, w, h);
+        damage(x, y, w, h);
     }
       
+    //
+    // Decodes a JPEG or PNG image of size w x h into one of a few cached mutable bitmaps, so that a
+    // new native bitmap does not have to be allocated for every rectangle. Bitmaps are keyed by size.
+    // Before KitKat, a bitmap can only be reused for an image of exactly the same size. Later versions
+    // can reuse any bitmap with enough memory, so sizes are rounded up to buckets of 64 pixels.
+    //
+    private Bitmap decodeTightBitmap(byte[] data, int length, int w, int h) {
+        int bw = w, bh = h;
+        if (Constants.SDK_INT >= 19) {
+            bw = (w + 63) & ~63;
+            bh = (h + 63) & ~63;
+        }
+        int key = bw << 16 | bh;
+
+        int slot = -1;
+        for (int i = 0; i < tightBitmaps.length; i++) {
+            if (tightBitmaps[i] != null && tightBitmapKeys[i] == key) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot < 0) {
+            slot = nextTightBitmap;
+            nextTightBitmap = (nextTightBitmap + 1) % tightBitmaps.length;
+            if (tightBitmaps[slot] != null)
+                tightBitmaps[slot].recycle();
+            tightBitmaps[slot] = Bitmap.createBitmap(bw, bh, bitmapopts.inPreferredConfig);
+            tightBitmapKeys[slot] = key;
+        }
+
+        Bitmap result;
+        bitmapopts.inBitmap = tightBitmaps[slot];
+        try {
+            result = BitmapFactory.decodeByteArray(data, 0, length, bitmapopts);
+        } catch (IllegalArgumentException e) {
+            // The image could not be decoded into the cached bitmap, so let a new one be allocated.
+            bitmapopts.inBitmap = null;
+            result = BitmapFactory.decodeByteArray(data, 0, length, bitmapopts);
+            if (result != null) {
+                tightBitmaps[slot].recycle();
+                tightBitmaps[slot] = result;
+                tightBitmapKeys[slot] = key;
+            }
+        }
+        bitmapopts.inBitmap = null;
+        return result;
+    }
+
     //
     // Decode 1bpp-encoded bi-color rectangle (8-bit and 24-bit versions).
     //
@@ -996,45 +1219,46 @@ public class Decoder {
     //
     void decodeGradientData (int x, int y, int w, int h, byte[] buf) {
 
-        int dx, dy, c;
-        byte[] prevRow = new byte[w * 3];
-        byte[] thisRow = new byte[w * 3];
-        byte[] pix = new byte[3];
-        int[] est = new int[3];
+        int dx, dy, up, upLeft, left, pix, r, g, b;
+        int i = 0;
         int[] pixels = bitmapData.bitmapPixels;
-
         int offset = bitmapData.offset(x, y);
 
-        for (dy = 0; dy < h; dy++) {
+        // The row above is kept packed, and is overwritten pixel by pixel as the current row is decoded.
+        if (gradientRow.length < w)
+            gradientRow = new int[w];
+        int[] row = gradientRow;
+        Arrays.fill(row, 0, w, 0);
 
-            /* First pixel in a row */
-            for (c = 0; c < 3; c++) {
-                pix[c] = (byte)(prevRow[c] + buf[dy * w * 3 + c]);
-                thisRow[c] = pix[c];
-            }
-            pixels[offset++] = (pix[0] & 0xFF) << 16 | (pix[1] & 0xFF) << 8 | (pix[2] & 0xFF);
-
-            /* Remaining pixels of a row */
-            for (dx = 1; dx < w; dx++) {
-                for (c = 0; c < 3; c++) {
-                    est[c] = ((prevRow[dx * 3 + c] & 0xFF) + (pix[c] & 0xFF) -
-                              (prevRow[(dx-1) * 3 + c] & 0xFF));
-                    if (est[c] > 0xFF) {
-                        est[c] = 0xFF;
-                    } else if (est[c] < 0x00) {
-                        est[c] = 0x00;
-                    }
-                    pix[c] = (byte)(est[c] + buf[(dy * w + dx) * 3 + c]);
-                    thisRow[dx * 3 + c] = pix[c];
-                }
-                pixels[offset++] = (pix[0] & 0xFF) << 16 | (pix[1] & 0xFF) << 8 | (pix[2] & 0xFF);
+        for (dy = 0; dy < h; dy++) {
+            left   = 0;
+            upLeft = 0;
+            for (dx = 0; dx < w; dx++) {
+                up = row[dx];
+                r  = gradientEstimate(up >> 16, left >> 16, upLeft >> 16);
+                g  = gradientEstimate(up >> 8,  left >> 8,  upLeft >> 8);
+                b  = gradientEstimate(up,       left,       upLeft);
+                pix = ((r + buf[i]) & 0xFF) << 16 | ((g + buf[i + 1]) & 0xFF) << 8 | ((b + buf[i + 2]) & 0xFF);
+                i += 3;
+                row[dx] = pix;
+                pixels[offset++] = pix;
+                upLeft = up;
+                left   = pix;
             }
-
-            System.arraycopy(thisRow, 0, prevRow, 0, w * 3);
             offset += (bitmapData.bitmapwidth - w);
         }
     }
 
+    //
+    // Predicts one colour channel (the low byte of each argument) as up + left - upLeft, clamped to 0..255.
+    //
+    private static int gradientEstimate (int up, int left, int upLeft) {
+        int est = (up & 0xFF) + (left & 0xFF) - (upLeft & 0xFF);
+        if ((est & ~0xFF) != 0)
+            est = (~est >>> 31) * 0xFF;
+        return est;
+    }
+
     /**
      * Handles cursor shape update (XCursor and RichCursor encodings).
      */
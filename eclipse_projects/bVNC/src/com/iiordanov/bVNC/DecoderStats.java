@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+/**
+ * Accumulates how long the decoder spends on rectangles of each encoding.
+ * <p>
+ * The time for a rectangle covers reading its data from the protocol stream as
+ * well as decoding it into the framebuffer, so the figures show what each
+ * encoding really costs on the device and connection at hand.
+ * </p>
+ */
+class DecoderStats {
+    private final static int MAX_ENCODINGS = 32;
+
+    private int nEncodings = 0;
+    private int[]  encodings = new int[MAX_ENCODINGS];
+    private long[] rects     = new long[MAX_ENCODINGS];
+    private long[] pixels    = new long[MAX_ENCODINGS];
+    private long[] nanos     = new long[MAX_ENCODINGS];
+
+    /**
+     * Records one rectangle of the given encoding. Empty rectangles, such as most
+     * pseudo-encodings, are ignored.
+     * @param encoding The RFB encoding of the rectangle.
+     * @param nPixels Number of pixels in the rectangle.
+     * @param elapsed Time in nanoseconds taken to read and decode it.
+     */
+    synchronized void add(int encoding, int nPixels, long elapsed) {
+        if (nPixels == 0)
+            return;
+        int i = 0;
+        while (i < nEncodings && encodings[i] != encoding)
+            i++;
+        if (i == nEncodings) {
+            if (nEncodings == MAX_ENCODINGS)
+                return;
+            encodings[nEncodings++] = encoding;
+        }
+        rects[i]++;
+        pixels[i] += nPixels;
+        nanos[i]  += elapsed;
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < nEncodings; i++) {
+            rects[i] = pixels[i] = nanos[i] = 0;
+        }
+        nEncodings = 0;
+    }
+
+    /**
+     * @return One line per encoding seen, with its rectangle and pixel counts, the time per
+     * pixel, and the rate at which 32-bit framebuffer data was produced.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < nEncodings; i++) {
+            s.append(encodingName(encodings[i])).append(": ")
+             .append(rects[i]).append(" rects, ")
+             .append(pixels[i]).append(" pixels");
+            if (pixels[i] > 0 && nanos[i] > 0) {
+                s.append(", ").append(String.format("%.1f", (double)nanos[i] / pixels[i])).append(" ns/pixel, ")
+                 .append(String.format("%.1f", pixels[i] * 4 * 1000.0 / nanos[i])).append(" MB/s");
+            }
+            s.append('\n');
+        }
+        return s.toString();
+    }
+
+    static String encodingName(int encoding) {
+        switch (encoding) {
+        case RfbProto.EncodingRaw:
+            return "Raw";
+        case RfbProto.EncodingCopyRect:
+            return "CopyRect";
+        case RfbProto.EncodingRRE:
+            return "RRE";
+        case RfbProto.EncodingCoRRE:
+            return "CoRRE";
+        case RfbProto.EncodingHextile:
+            return "Hextile";
+        case RfbProto.EncodingZlib:
+            return "Zlib";
+        case RfbProto.EncodingTight:
+            return "Tight";
+        case RfbProto.EncodingTightPng:
+            return "TightPNG";
+        case RfbProto.EncodingZRLE:
+            return "ZRLE";
+        case RfbProto.EncodingXCursor:
+            return "XCursor";
+        case RfbProto.EncodingRichCursor:
+            return "RichCursor";
+        }
+        return "Encoding " + encoding;
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+/**
+ * Keeps the whole framebuffer in a direct buffer, outside of the Java heap.
+ * <p>
+ * The desktop then neither counts against the memory class, nor gets copied around by the garbage
+ * collector. Pixels are stored in the layout of an ARGB_8888 bitmap, so that bands of full rows can
+ * be drawn by copying them into a bitmap with copyPixelsFromBuffer().
+ * </p>
+ * <p>
+ * Decoders write into bitmapPixels as usual, which here is a staging area as wide as the desktop
+ * and as tall as the rectangle being decoded. It is copied into the buffer by updateBitmap().
+ * </p>
+ */
+class DirectBufferBitmapData extends AbstractBitmapData {
+    // Rows of the staging area, which grows temporarily for taller rectangles.
+    static final int STAGE_ROWS = 64;
+
+    // Rows of the bitmap the framebuffer is drawn through.
+    static final int BAND_ROWS = 64;
+
+    // Whether ints written to the buffer are stored least significant byte first.
+    private static final boolean LITTLE_ENDIAN = (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+
+    private IntBuffer framebuffer;
+    // Separate views of the framebuffer for the decoder and the UI thread, each with its own position.
+    private IntBuffer writeView;
+    private IntBuffer drawView;
+    private int[] row;
+
+    private int stageY;
+    private int stageRows;
+
+    class DirectBufferDrawable extends AbstractBitmapDrawable {
+        private Bitmap band;
+        private Rect bandSrc = new Rect();
+        private Rect bandDst = new Rect();
+
+        DirectBufferDrawable() {
+            super(DirectBufferBitmapData.this);
+            band = Bitmap.createBitmap(Math.max(framebufferwidth, 1), BAND_ROWS, Bitmap.Config.ARGB_8888);
+        }
+
+        /* (non-Javadoc)
+         * @see android.graphics.drawable.DrawableContainer#draw(android.graphics.Canvas)
+         */
+        @Override
+        public void draw(Canvas canvas) {
+            toDraw = canvas.getClipBounds();
+            int left   = Math.max(toDraw.left - 1, 0);
+            int right  = Math.min(toDraw.right + 1, framebufferwidth);
+            int top    = Math.max(toDraw.top - 1, 0);
+            int bottom = Math.min(toDraw.bottom + 1, framebufferheight);
+
+            try {
+                IntBuffer view = drawView;
+                for (int y = top; y < bottom; y += BAND_ROWS) {
+                    int rows = Math.min(BAND_ROWS, bottom - y);
+                    view.position(y * bitmapwidth);
+                    band.copyPixelsFromBuffer(view);
+                    bandSrc.set(left, 0, right, rows);
+                    bandDst.set(left, y, right, y + rows);
+                    canvas.drawBitmap(band, bandSrc, bandDst, _defaultPaint);
+                }
+                canvas.drawBitmap(softCursor, cursorRect.left, cursorRect.top, _defaultPaint);
+            } catch (Throwable e) { }
+        }
+
+        @Override
+        public void dispose() {
+            if (band != null)
+                band.recycle();
+            band = null;
+            super.dispose();
+        }
+    }
+
+    DirectBufferBitmapData(RfbConnectable p, RemoteCanvas c) {
+        super(p, c);
+        allocateBuffers();
+        drawable.startDrawing();
+    }
+
+    private void allocateBuffers() {
+        bitmapwidth  = framebufferwidth;
+        bitmapheight = framebufferheight;
+        if (bitmapwidth  == 0) bitmapwidth  = 1;
+        if (bitmapheight == 0) bitmapheight = 1;
+
+        // The extra band at the bottom lets every band be copied in full.
+        framebuffer = ByteBuffer.allocateDirect(bitmapwidth * (bitmapheight + BAND_ROWS) * 4)
+                                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        writeView = framebuffer.duplicate();
+        drawView  = framebuffer.duplicate();
+        row       = new int[bitmapwidth];
+
+        stageY       = 0;
+        stageRows    = Math.min(STAGE_ROWS, bitmapheight);
+        bitmapPixels = new int[stageRows * bitmapwidth];
+        android.util.Log.i("DBFB", "bitmapsize = ("+bitmapwidth+","+bitmapheight+")");
+    }
+
+    /**
+     * Converts a color to the int which the buffer stores in the byte order of an ARGB_8888 bitmap.
+     */
+    private static int toBitmapOrder(int c) {
+        if (LITTLE_ENDIAN)
+            return 0xFF000000 | (c & 0xFF) << 16 | (c & 0xFF00) | (c >> 16) & 0xFF;
+        else
+            return (c << 8) | 0xFF;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#createDrawable()
+     */
+    @Override
+    AbstractBitmapDrawable createDrawable() {
+        return new DirectBufferDrawable();
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#validDraw(int, int, int, int)
+     */
+    @Override
+    public boolean validDraw(int x, int y, int w, int h) {
+        if (x + w > bitmapwidth || y + h > bitmapheight)
+            return false;
+
+        if (h > stageRows) {
+            try {
+                bitmapPixels = new int[h * bitmapwidth];
+                stageRows = h;
+            } catch (OutOfMemoryError e) {
+                Log.e("DBFB", "No memory to stage a " + w + "x" + h + " rectangle");
+                return false;
+            }
+        }
+        stageY = y;
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#offset(int, int)
+     */
+    @Override
+    public int offset(int x, int y) {
+        return (y - stageY) * bitmapwidth + x;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#updateBitmap(int, int, int, int)
+     */
+    @Override
+    public void updateBitmap(int x, int y, int w, int h) {
+        int[] pixels = bitmapPixels;
+        for (int j = 0; j < h; j++) {
+            int src = offset(x, y + j);
+            for (int i = 0; i < w; i++)
+                row[i] = toBitmapOrder(pixels[src + i]);
+            writeView.position((y + j) * bitmapwidth + x);
+            writeView.put(row, 0, w);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#updateBitmap(Bitmap, int, int, int, int)
+     */
+    @Override
+    public void updateBitmap(Bitmap b, int x, int y, int w, int h) {
+        if (!validDraw(x, y, w, h))
+            return;
+        b.getPixels(bitmapPixels, offset(x, y), bitmapwidth, 0, 0, w, h);
+        updateBitmap(x, y, w, h);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#copyRect(android.graphics.Rect, android.graphics.Rect, android.graphics.Paint)
+     */
+    @Override
+    public void copyRect(int sx, int sy, int dx, int dy, int w, int h) {
+        if (!validDraw(dx, dy, w, h))
+            return;
+        // The whole source goes through the staging area first, so overlapping copies need no care.
+        // It is already in bitmap order, so it is copied back unconverted.
+        for (int j = 0; j < h; j++) {
+            writeView.position((sy + j) * bitmapwidth + sx);
+            writeView.get(bitmapPixels, j * bitmapwidth, w);
+        }
+        for (int j = 0; j < h; j++) {
+            writeView.position((dy + j) * bitmapwidth + dx);
+            writeView.put(bitmapPixels, j * bitmapwidth, w);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#drawRect(int, int, int, int, android.graphics.Paint)
+     */
+    @Override
+    void drawRect(int x, int y, int w, int h, Paint paint) {
+        int color = toBitmapOrder(paint.getColor());
+        for (int i = 0; i < w; i++)
+            row[i] = color;
+        for (int j = 0; j < h; j++) {
+            writeView.position((y + j) * bitmapwidth + x);
+            writeView.put(row, 0, w);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#updateDone()
+     */
+    @Override
+    boolean updateDone() {
+        // Give back the memory of a staging area grown for a tall rectangle.
+        if (stageRows > STAGE_ROWS) {
+            stageRows    = Math.min(STAGE_ROWS, bitmapheight);
+            bitmapPixels = new int[stageRows * bitmapwidth];
+        }
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#scrollChanged(int, int)
+     */
+    @Override
+    void scrollChanged(int newx, int newy) {
+        // Don't need to do anything here
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#syncScroll()
+     */
+    @Override
+    void syncScroll() {
+        // Don't need anything here either
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#frameBufferSizeChanged(RfbProto)
+     */
+    @Override
+    public void frameBufferSizeChanged () {
+        framebufferwidth  = rfb.framebufferWidth();
+        framebufferheight = rfb.framebufferHeight();
+        android.util.Log.i("DBFB", "bitmapsize changed = ("+framebufferwidth+","+framebufferheight+")");
+        dispose();
+        // Try to free up some memory.
+        System.gc();
+        allocateBuffers();
+        drawable = createDrawable();
+        drawable.startDrawing();
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#dispose()
+     */
+    @Override
+    void dispose() {
+        framebuffer = null;
+        writeView   = null;
+        drawView    = null;
+        row         = null;
+        super.dispose();
+    }
+}
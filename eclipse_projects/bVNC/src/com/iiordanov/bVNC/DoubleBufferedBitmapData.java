@@ -0,0 +1,304 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import com.iiordanov.android.drawing.OverlappingCopy;
+import com.iiordanov.android.drawing.RectList;
+import com.iiordanov.util.ObjectPool;
+
+/**
+ * Keeps the whole framebuffer in bitmapPixels and shows it through two bitmaps which take turns
+ * being on screen.
+ * <p>
+ * The decoder only ever writes to bitmapPixels and records which area it changed. When a framebuffer
+ * update is done, the changed area is copied into the bitmap that is not on screen, and that bitmap
+ * is swapped in through an atomic reference. The UI thread draws whatever bitmap is current without
+ * taking any monitor. Before the decoder writes into a bitmap again, it makes sure the UI thread has
+ * finished any draw of it that started before the swap.
+ * </p>
+ */
+class DoubleBufferedBitmapData extends AbstractBitmapData {
+    /**
+     * Multiply this times total number of pixels to get estimate of process size with all buffers plus
+     * safety factor
+     */
+    static final int CAPACITY_MULTIPLIER = 9;
+    Bitmap.Config cfg = Bitmap.Config.RGB_565;
+
+    // The bitmap on screen, the one being prepared, and the one the UI thread is drawing, if any.
+    private AtomicReference<Bitmap> front = new AtomicReference<Bitmap>();
+    private Bitmap back;
+    private AtomicReference<Bitmap> drawnBitmap = new AtomicReference<Bitmap>();
+
+    // Areas changed during the current update, and areas changed during the previous one, which the
+    // back bitmap has not seen yet either. Once a list holds MAX_DIRTY_RECTS separate areas, its
+    // bounding box is uploaded instead.
+    private static final int MAX_DIRTY_RECTS = 16;
+    private ObjectPool<Rect> dirtyPool = new ObjectPool<Rect>() {
+        @Override
+        protected Rect itemForPool() {
+            return new Rect();
+        }
+    };
+    private RectList dirtyList = new RectList(dirtyPool);
+    private RectList staleList = new RectList(dirtyPool);
+    private Rect dirtyBounds = new Rect();
+    private Rect staleBounds = new Rect();
+    private Rect dirtyRect = new Rect();
+
+    // Guards bitmapPixels. Unlike mbitmap, which changes with every swap, it stays the same object.
+    private final Object pixelsLock = new Object();
+
+    class DoubleBufferedDrawable extends AbstractBitmapDrawable {
+
+        DoubleBufferedDrawable() {
+            super(DoubleBufferedBitmapData.this);
+        }
+
+        /* (non-Javadoc)
+         * @see android.graphics.drawable.DrawableContainer#draw(android.graphics.Canvas)
+         */
+        @Override
+        public void draw(Canvas canvas) {
+            // Announce which bitmap is being drawn, making sure it was not swapped out in the meantime.
+            Bitmap b;
+            do {
+                b = front.get();
+                drawnBitmap.set(b);
+            } while (b != front.get());
+
+            try {
+                canvas.drawBitmap(b, 0.0f, 0.0f, _defaultPaint);
+                canvas.drawBitmap(softCursor, cursorRect.left, cursorRect.top, _defaultPaint);
+            } catch (Throwable e) {
+            } finally {
+                drawnBitmap.set(null);
+            }
+        }
+    }
+
+    DoubleBufferedBitmapData(RfbConnectable rfb, RemoteCanvas c) {
+        super(rfb, c);
+        bitmapwidth=framebufferwidth;
+        bitmapheight=framebufferheight;
+        // To please createBitmap, we ensure the size it at least 1x1.
+        if (bitmapwidth  == 0) bitmapwidth  = 1;
+        if (bitmapheight == 0) bitmapheight = 1;
+
+        allocateBuffers();
+        drawable.startDrawing();
+    }
+
+    private void allocateBuffers() {
+        bitmapPixels = new int[bitmapwidth * bitmapheight];
+        mbitmap = Bitmap.createBitmap(bitmapwidth, bitmapheight, cfg);
+        mbitmap.setHasAlpha(false);
+        back = Bitmap.createBitmap(bitmapwidth, bitmapheight, cfg);
+        back.setHasAlpha(false);
+        front.set(mbitmap);
+        dirtyList.clear();
+        staleList.clear();
+        dirtyBounds.setEmpty();
+        staleBounds.setEmpty();
+    }
+
+    @Override
+    public boolean validDraw(int x, int y, int w, int h) {
+        return true;
+    }
+
+    @Override
+    public int offset(int x, int y) {
+        return y * bitmapwidth + x;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#createDrawable()
+     */
+    @Override
+    AbstractBitmapDrawable createDrawable() {
+        return new DoubleBufferedDrawable();
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#updateBitmap(int, int, int, int)
+     */
+    @Override
+    public void updateBitmap(int x, int y, int w, int h) {
+        dirtyRect.set(x, y, x + w, y + h);
+        dirtyBounds.union(dirtyRect);
+        if (dirtyList.getSize() < MAX_DIRTY_RECTS)
+            dirtyList.add(dirtyRect);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#updateBitmap(Bitmap, int, int, int, int)
+     */
+    @Override
+    public void updateBitmap(Bitmap b, int x, int y, int w, int h) {
+        b.getPixels(bitmapPixels, offset(x, y), bitmapwidth, 0, 0, w, h);
+        updateBitmap(x, y, w, h);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#updateDone()
+     */
+    @Override
+    boolean updateDone() {
+        if (dirtyBounds.isEmpty())
+            return false;
+
+        // Wait out a draw of the back bitmap that began before it was last swapped off screen.
+        Bitmap b = back;
+        while (drawnBitmap.get() == b)
+            Thread.yield();
+
+        synchronized (pixelsLock) {
+            if (dirtyList.getSize() >= MAX_DIRTY_RECTS || staleList.getSize() >= MAX_DIRTY_RECTS) {
+                Rect r = dirtyRect;
+                r.set(staleBounds);
+                r.union(dirtyBounds);
+                b.setPixels(bitmapPixels, offset(r.left, r.top), bitmapwidth, r.left, r.top, r.width(), r.height());
+            } else {
+                // Adding to a RectList drops the parts already in it, so no area is uploaded twice.
+                for (int i = 0; i < dirtyList.getSize(); i++)
+                    staleList.add(dirtyList.get(i));
+                for (int i = 0; i < staleList.getSize(); i++) {
+                    Rect r = staleList.get(i);
+                    b.setPixels(bitmapPixels, offset(r.left, r.top), bitmapwidth, r.left, r.top, r.width(), r.height());
+                }
+            }
+        }
+        back = front.getAndSet(b);
+        mbitmap = b;
+
+        // What changed now is what the new back bitmap is missing.
+        RectList l = staleList;
+        staleList = dirtyList;
+        dirtyList = l;
+        dirtyList.clear();
+        staleBounds.set(dirtyBounds);
+        dirtyBounds.setEmpty();
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#imageRect(int, int, int, int, int[])
+     */
+    @Override
+    public void imageRect(int x, int y, int w, int h, int[] pix) {
+        synchronized (pixelsLock) {
+            for (int j = 0; j < h; j++) {
+                try {
+                    System.arraycopy(pix, (w * j), bitmapPixels, offset(x, y+j), w);
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    // An index is out of bounds for some reason, but we try to continue.
+                    e.printStackTrace();
+                }
+            }
+        }
+        updateBitmap(x, y, w, h);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#copyRect(android.graphics.Rect, android.graphics.Rect, android.graphics.Paint)
+     */
+    @Override
+    public void copyRect(int sx, int sy, int dx, int dy, int w, int h) {
+        try {
+            OverlappingCopy.Copy(bitmapPixels, bitmapwidth, offset(sx, sy), offset(dx, dy), w, h);
+        } catch (Exception e) {
+            // There was an index out of bounds exception, but we continue.
+            e.printStackTrace();
+        }
+        updateBitmap(dx, dy, w, h);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#drawRect(int, int, int, int, android.graphics.Paint)
+     */
+    @Override
+    void drawRect(int x, int y, int w, int h, Paint paint) {
+        int color = paint.getColor();
+        int offset = offset(x, y);
+        for (int j = 0; j < h; j++, offset += bitmapwidth) {
+            Arrays.fill(bitmapPixels, offset, offset + w, color);
+        }
+        updateBitmap(x, y, w, h);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#scrollChanged(int, int)
+     */
+    @Override
+    void scrollChanged(int newx, int newy) {
+        // Don't need to do anything here
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#frameBufferSizeChanged(RfbProto)
+     */
+    @Override
+    public void frameBufferSizeChanged () {
+        framebufferwidth=rfb.framebufferWidth();
+        framebufferheight=rfb.framebufferHeight();
+        android.util.Log.i("DBBM", "bitmapsize changed = ("+bitmapwidth+","+bitmapheight+")");
+        if ( bitmapwidth < framebufferwidth || bitmapheight < framebufferheight ) {
+            dispose();
+            // Try to free up some memory.
+            System.gc();
+            bitmapwidth  = framebufferwidth;
+            bitmapheight = framebufferheight;
+            allocateBuffers();
+            drawable     = createDrawable();
+            drawable.startDrawing();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#syncScroll()
+     */
+    @Override
+    void syncScroll() {
+        // Don't need anything here either
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#dispose()
+     */
+    @Override
+    void dispose() {
+        Bitmap f = front.getAndSet(null);
+        if (f != null && f != mbitmap)
+            f.recycle();
+        if (back != null && back != mbitmap)
+            back.recycle();
+        back = null;
+        super.dispose();
+    }
+}
@@ -29,6 +29,8 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.util.Log;
 
+import com.iiordanov.android.drawing.OverlappingCopy;
+
 class FullBufferBitmapData extends AbstractBitmapData {
     /**
      * Multiply this times total number of pixels to get estimate of process size with all buffers plus
@@ -115,32 +117,11 @@ class FullBufferBitmapData extends AbstractBitmapData {
      */
     @Override
     public void copyRect(int sx, int sy, int dx, int dy, int w, int h) {
-        int srcOffset, dstOffset;
-        int dstH = h;
-        int dstW = w;
-        
-        int startSrcY, endSrcY, dstY, deltaY;
-        if (sy > dy) {
-            startSrcY = sy;
-            endSrcY = sy + dstH;
-            dstY = dy;
-            deltaY = +1;
-        } else {
-            startSrcY = sy + dstH - 1;
-            endSrcY = sy - 1;
-            dstY = dy + dstH - 1;
-            deltaY = -1;
-        }
-        for (int y = startSrcY; y != endSrcY; y += deltaY) {
-            srcOffset = offset(sx, y);
-            dstOffset = offset(dx, dstY);
-            try {
-                System.arraycopy(bitmapPixels, srcOffset, bitmapPixels, dstOffset, dstW);
-            } catch (Exception e) {
-                // There was an index out of bounds exception, but we continue copying what we can. 
-                e.printStackTrace();
-            }
-            dstY += deltaY;
+        try {
+            OverlappingCopy.Copy(bitmapPixels, framebufferwidth, offset(sx, sy), offset(dx, dy), w, h);
+        } catch (Exception e) {
+            // There was an index out of bounds exception, but we continue.
+            e.printStackTrace();
         }
     }
 
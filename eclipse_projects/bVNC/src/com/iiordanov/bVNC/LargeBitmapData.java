@@ -119,41 +119,28 @@ class LargeBitmapData extends AbstractBitmapData {
      */
     @Override
     public void copyRect(int sx, int sy, int dx, int dy, int w, int h) {
-        int srcOffset, dstOffset;
-        int dstH = h;
-        int dstW = w;
-        int xo, yo;
-        
-        int startSrcY, endSrcY, dstY, deltaY;
-        if (sy > dy) {
-            startSrcY = sy;
-            endSrcY = sy + dstH;
-            dstY = dy;
-            deltaY = +1;
-        } else {
-            startSrcY = sy + dstH - 1;
-            endSrcY = sy - 1;
-            dstY = dy + dstH - 1;
-            deltaY = -1;
-        }
-        for (int y = startSrcY; y != endSrcY; y += deltaY) {
-            srcOffset = offset(sx, y);
-            dstOffset = offset(dx, dstY);
-            xo = sx-xoffset;
-            if (xo < 0) xo = 0;
-            yo = y-yoffset;
-            if (yo < 0) yo = 0;
-            if (sx + dstW > bitmapwidth) dstW = bitmapwidth - sx;
-            try {
-                mbitmap.getPixels(bitmapPixels, srcOffset, bitmapwidth, xo, yo, dstW, 1);
-                System.arraycopy(bitmapPixels, srcOffset, bitmapPixels, dstOffset, dstW);
-            } catch (Exception e) {
-                // There was an index out of bounds exception, but we continue copying what we can. 
-                e.printStackTrace();
+        // Only the part of the framebuffer in the bitmap is at hand, so a source outside of it has to be
+        // requested from the server instead.
+        if (sx - xoffset < 0 || sy - yoffset < 0 ||
+            sx - xoffset + w > bitmapwidth || sy - yoffset + h > bitmapheight) {
+            synchronized (this) {
+                ObjectPool.Entry<Rect> entry = rectPool.reserve();
+                Rect r = entry.get();
+                r.set(dx, dy, dx + w, dy + h);
+                invalidList.add(r);
+                rectPool.release(entry);
             }
-            dstY += deltaY;
+            return;
+        }
+        try {
+            // The bitmap is what holds the source, so read it back once.
+            mbitmap.getPixels(bitmapPixels, offset(sx, sy), bitmapwidth, sx - xoffset, sy - yoffset, w, h);
+            OverlappingCopy.Copy(bitmapPixels, bitmapwidth, offset(sx, sy), offset(dx, dy), w, h);
+        } catch (Exception e) {
+            // There was an index out of bounds exception, but we continue.
+            e.printStackTrace();
         }
-        updateBitmap(dx, dy, dstW, dstH);
+        updateBitmap(dx, dy, w, h);
     }
     
     /* (non-Javadoc)
@@ -311,6 +311,18 @@ public abstract class MainConfiguration extends FragmentActivity implements GetT
             rAltAsIsoL3Shift.setChecked(Utils.querySharedPreferenceBoolean(this, Constants.rAltAsIsoL3ShiftTag));
             MenuItem itemLeftHandedMode = menu.findItem(R.id.itemLeftHandedMode);
             itemLeftHandedMode.setChecked(Utils.querySharedPreferenceBoolean(this, Constants.leftHandedModeTag));
+            MenuItem itemPipelinedDecoding = menu.findItem(R.id.itemPipelinedDecoding);
+            itemPipelinedDecoding.setChecked(Utils.querySharedPreferenceBoolean(this, Constants.pipelinedDecodingTag));
+            MenuItem itemRecordSessions = menu.findItem(R.id.itemRecordSessions);
+            itemRecordSessions.setChecked(Utils.querySharedPreferenceBoolean(this, Constants.recordSessionsTag));
+            MenuItem itemAdaptiveQuality = menu.findItem(R.id.itemAdaptiveQuality);
+            itemAdaptiveQuality.setChecked(Utils.querySharedPreferenceBoolean(this, Constants.adaptiveQualityTag));
+            MenuItem itemOffHeapFramebuffer = menu.findItem(R.id.itemOffHeapFramebuffer);
+            itemOffHeapFramebuffer.setChecked(Utils.querySharedPreferenceBoolean(this, Constants.offHeapFramebufferTag));
+            MenuItem itemPagedFramebuffer = menu.findItem(R.id.itemPagedFramebuffer);
+            itemPagedFramebuffer.setChecked(Utils.querySharedPreferenceBoolean(this, Constants.pagedFramebufferTag));
+            MenuItem itemPasteLongText = menu.findItem(R.id.itemPasteLongText);
+            itemPasteLongText.setChecked(Utils.querySharedPreferenceBoolean(this, Constants.pasteLongTextTag));
         }
         return true;
     }
@@ -375,6 +387,24 @@ public abstract class MainConfiguration extends FragmentActivity implements GetT
         case R.id.itemLeftHandedMode:
             Utils.toggleSharedPreferenceBoolean(this, Constants.leftHandedModeTag);
             break;
+        case R.id.itemPipelinedDecoding:
+            Utils.toggleSharedPreferenceBoolean(this, Constants.pipelinedDecodingTag);
+            break;
+        case R.id.itemRecordSessions:
+            Utils.toggleSharedPreferenceBoolean(this, Constants.recordSessionsTag);
+            break;
+        case R.id.itemAdaptiveQuality:
+            Utils.toggleSharedPreferenceBoolean(this, Constants.adaptiveQualityTag);
+            break;
+        case R.id.itemOffHeapFramebuffer:
+            Utils.toggleSharedPreferenceBoolean(this, Constants.offHeapFramebufferTag);
+            break;
+        case R.id.itemPagedFramebuffer:
+            Utils.toggleSharedPreferenceBoolean(this, Constants.pagedFramebufferTag);
+            break;
+        case R.id.itemPasteLongText:
+            Utils.toggleSharedPreferenceBoolean(this, Constants.pasteLongTextTag);
+            break;
         }
         return true;
     }
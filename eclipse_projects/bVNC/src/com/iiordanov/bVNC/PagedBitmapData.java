@@ -0,0 +1,674 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+/**
+ * Keeps the whole remote desktop, even when it is too large to fit in memory as plain pixels, by
+ * storing it as square tiles.
+ * <p>
+ * The most recently used tiles stay resident as pixels, and the rest are deflated to about a tenth
+ * of their size. Only if the compressed tiles outgrow their share of memory as well are the oldest
+ * of them dropped, in which case they are requested from the server again once they come into view.
+ * Panning around a large desktop is therefore served from memory, instead of waiting for the server
+ * on every scroll as with LargeBitmapData.
+ * </p>
+ * <p>
+ * Decoders write into bitmapPixels as usual, which here is a staging area as wide as the desktop
+ * and as tall as the rectangle being decoded. It is copied into the tiles by updateBitmap().
+ * </p>
+ * <p>
+ * The UI thread only draws tiles which are resident, and a placeholder for the others. Tiles coming
+ * into view are inflated at the end of each update on the decoding thread, or by a paging thread if
+ * the view moves in between, so that drawing never waits on compression.
+ * </p>
+ */
+class PagedBitmapData extends AbstractBitmapData {
+    static final int TILE_SIZE = 128;
+
+    // The process heap is divided by these to give the memory for resident tiles and for compressed tiles.
+    static final int RESIDENT_DIVISOR = 4;
+    static final int PACKED_DIVISOR   = 8;
+
+    // Rows of the staging area, which grows temporarily for taller rectangles.
+    static final int STAGE_ROWS = TILE_SIZE;
+
+    // Color drawn where a tile in view is not resident yet.
+    static final int PLACEHOLDER_COLOR = 0xFF404040;
+
+    private static final int READ = 0, WRITE = 1, FILL = 2;
+
+    private static class Tile {
+        int[] pixels;     // Set while resident, TILE_SIZE pixels per row
+        byte[] packed;    // Set while compressed
+        boolean dropped;  // Contents lost, to be requested again
+        Tile prev, next;  // Neighbours in the list of resident or of compressed tiles
+    }
+
+    /**
+     * Tiles in order of use, the most recently used first, so that the one to evict is found at once.
+     */
+    private static class TileList {
+        Tile head, tail;
+
+        void addFirst(Tile t) {
+            t.prev = null;
+            t.next = head;
+            if (head != null)
+                head.prev = t;
+            else
+                tail = t;
+            head = t;
+        }
+
+        void remove(Tile t) {
+            if (t.prev != null)
+                t.prev.next = t.next;
+            else
+                head = t.next;
+            if (t.next != null)
+                t.next.prev = t.prev;
+            else
+                tail = t.prev;
+            t.prev = t.next = null;
+        }
+    }
+
+    private static ExecutorService pager;
+
+    private int capacity;
+    private int displayWidth;
+    private int displayHeight;
+
+    private Tile[] tiles;
+    private int tilesAcross;
+    private int tilesDown;
+    private TileList residentTiles;
+    private TileList packedTiles;
+    private int resident;
+    private int maxResident;
+    private long packedBytes;
+    private long maxPacked;
+    private int[] spare;
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] tileBytes;
+    private byte[] packBuffer;
+
+    private int stageY;
+    private int stageRows;
+
+    // Visible part of the desktop, as last reported by scrollChanged().
+    private int scrollX, scrollY, visibleWidth, visibleHeight;
+    private Rect requestRect = new Rect();
+
+    private Paint placeholderPaint = new Paint();
+    private AtomicBoolean pagingQueued = new AtomicBoolean();
+    private Runnable pageIn = new Runnable() {
+        @Override
+        public void run() {
+            pagingQueued.set(false);
+            pageInVisibleTiles();
+        }
+    };
+
+    class PagedBitmapDrawable extends AbstractBitmapDrawable {
+        PagedBitmapDrawable() {
+            super(PagedBitmapData.this);
+        }
+
+        /* (non-Javadoc)
+         * @see android.graphics.drawable.DrawableContainer#draw(android.graphics.Canvas)
+         */
+        @Override
+        public void draw(Canvas canvas) {
+            toDraw = canvas.getClipBounds();
+            try {
+                drawTiles(canvas, toDraw, _defaultPaint);
+                canvas.drawBitmap(softCursor, cursorRect.left, cursorRect.top, _defaultPaint);
+            } catch (Throwable e) { }
+        }
+    }
+
+    /**
+     * @param p Protocol implementation
+     * @param c View that will display screen
+     * @param displayWidth
+     * @param displayHeight
+     * @param capacity Max process heap size in megabytes
+     */
+    PagedBitmapData(RfbConnectable p, RemoteCanvas c, int displayWidth, int displayHeight, int capacity) {
+        super(p, c);
+        this.capacity      = capacity;
+        this.displayWidth  = displayWidth;
+        this.displayHeight = displayHeight;
+        placeholderPaint.setColor(PLACEHOLDER_COLOR);
+        allocateObjects();
+        drawable.startDrawing();
+    }
+
+    private static synchronized ExecutorService getPager() {
+        if (pager == null) {
+            pager = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PagedBitmapData");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pager;
+    }
+
+    private synchronized void allocateObjects() {
+        bitmapwidth  = framebufferwidth;
+        bitmapheight = framebufferheight;
+        if (bitmapwidth  == 0) bitmapwidth  = 1;
+        if (bitmapheight == 0) bitmapheight = 1;
+
+        tilesAcross = (bitmapwidth  + TILE_SIZE - 1) / TILE_SIZE;
+        tilesDown   = (bitmapheight + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new Tile[tilesAcross * tilesDown];
+        for (int i = 0; i < tiles.length; i++)
+            tiles[i] = new Tile();
+        residentTiles = new TileList();
+        packedTiles   = new TileList();
+
+        // Keep enough tiles resident to cover the display, whatever the budget.
+        long heap = capacity * 1024L * 1024L;
+        int minResident = (displayWidth / TILE_SIZE + 2) * (displayHeight / TILE_SIZE + 2);
+        maxResident = Math.max((int)(heap / RESIDENT_DIVISOR / (TILE_SIZE * TILE_SIZE * 4)), minResident);
+        maxPacked   = heap / PACKED_DIVISOR;
+        resident    = 0;
+        packedBytes = 0;
+        spare       = null;
+
+        deflater   = new Deflater(Deflater.BEST_SPEED);
+        inflater   = new Inflater();
+        tileBytes  = new byte[TILE_SIZE * TILE_SIZE * 3];
+        packBuffer = new byte[tileBytes.length + (tileBytes.length >> 8) + 64];
+
+        stageY       = 0;
+        stageRows    = Math.min(STAGE_ROWS, bitmapheight);
+        bitmapPixels = new int[stageRows * bitmapwidth];
+        android.util.Log.i("PBM", "bitmapsize = ("+bitmapwidth+","+bitmapheight+"), " +
+                           tiles.length + " tiles, " + maxResident + " resident");
+    }
+
+    @Override
+    AbstractBitmapDrawable createDrawable() {
+        return new PagedBitmapDrawable();
+    }
+
+    /**
+     *
+     * @return The smallest scale supported by the implementation; the scale at which
+     * the visible part of the desktop would take up all of the resident tiles
+     */
+    @Override
+    float getMinimumScale() {
+        float residentScale = (float)Math.sqrt((double)vncCanvas.getWidth() * vncCanvas.getHeight() /
+                                               ((double)maxResident * TILE_SIZE * TILE_SIZE));
+        return Math.max(super.getMinimumScale(), residentScale);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#validDraw(int, int, int, int)
+     */
+    @Override
+    public boolean validDraw(int x, int y, int w, int h) {
+        if (x + w > bitmapwidth || y + h > bitmapheight)
+            return false;
+
+        if (h > stageRows) {
+            try {
+                bitmapPixels = new int[h * bitmapwidth];
+                stageRows = h;
+            } catch (OutOfMemoryError e) {
+                Log.e("PBM", "No memory to stage a " + w + "x" + h + " rectangle");
+                markDropped(x, y, w, h);
+                return false;
+            }
+        }
+        stageY = y;
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#offset(int, int)
+     */
+    @Override
+    public int offset(int x, int y) {
+        return (y - stageY) * bitmapwidth + x;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#updateBitmap(int, int, int, int)
+     */
+    @Override
+    public void updateBitmap(int x, int y, int w, int h) {
+        transfer(WRITE, bitmapPixels, offset(x, y), bitmapwidth, x, y, w, h, 0);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#updateBitmap(Bitmap, int, int, int, int)
+     */
+    @Override
+    public void updateBitmap(Bitmap b, int x, int y, int w, int h) {
+        if (!validDraw(x, y, w, h))
+            return;
+        b.getPixels(bitmapPixels, offset(x, y), bitmapwidth, 0, 0, w, h);
+        updateBitmap(x, y, w, h);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#copyRect(android.graphics.Rect, android.graphics.Rect, android.graphics.Paint)
+     */
+    @Override
+    public void copyRect(int sx, int sy, int dx, int dy, int w, int h) {
+        if (!validDraw(dx, dy, w, h))
+            return;
+        // The whole source goes through the staging area first, so overlapping copies need no care.
+        int stageOffset = offset(sx, dy);
+        boolean complete = transfer(READ, bitmapPixels, stageOffset, bitmapwidth, sx, sy, w, h, 0);
+        transfer(WRITE, bitmapPixels, stageOffset, bitmapwidth, dx, dy, w, h, 0);
+        if (!complete)
+            markDropped(dx, dy, w, h);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#drawRect(int, int, int, int, android.graphics.Paint)
+     */
+    @Override
+    void drawRect(int x, int y, int w, int h, Paint paint) {
+        transfer(FILL, null, 0, 0, x, y, w, h, paint.getColor());
+    }
+
+    /**
+     * Moves pixels between a buffer and the tiles, or fills an area of the tiles with a color.
+     * @param mode READ from the tiles into buf, WRITE buf into the tiles, or FILL the tiles with color
+     * @param buf Buffer holding the area, bufOffset being where x, y is and stride the length of its rows
+     * @return false if some of the area READ was dropped
+     */
+    private synchronized boolean transfer(int mode, int[] buf, int bufOffset, int stride,
+                                          int x, int y, int w, int h, int color) {
+        if (tiles == null)
+            return false;
+
+        boolean complete = true;
+        int right  = Math.min(x + w, bitmapwidth);
+        int bottom = Math.min(y + h, bitmapheight);
+        for (int ty = y / TILE_SIZE; ty * TILE_SIZE < bottom; ty++) {
+            int tileTop    = ty * TILE_SIZE;
+            int tileBottom = Math.min(tileTop + TILE_SIZE, bitmapheight);
+            int top        = Math.max(y, tileTop);
+            int rows       = Math.min(bottom, tileBottom) - top;
+
+            for (int tx = x / TILE_SIZE; tx * TILE_SIZE < right; tx++) {
+                int tileLeft  = tx * TILE_SIZE;
+                int tileRight = Math.min(tileLeft + TILE_SIZE, bitmapwidth);
+                int left      = Math.max(x, tileLeft);
+                int cols      = Math.min(right, tileRight) - left;
+
+                Tile t = tiles[ty * tilesAcross + tx];
+                int bufIndex  = bufOffset + (top - y) * stride + (left - x);
+                int tileIndex = (top - tileTop) * TILE_SIZE + (left - tileLeft);
+
+                if (mode == READ) {
+                    if (t.dropped)
+                        complete = false;
+                    if (t.pixels == null && t.packed == null) {
+                        for (int r = 0; r < rows; r++, bufIndex += stride)
+                            Arrays.fill(buf, bufIndex, bufIndex + cols, 0);
+                        continue;
+                    }
+                    int[] p = residentPixels(t, true);
+                    for (int r = 0; r < rows; r++, bufIndex += stride, tileIndex += TILE_SIZE)
+                        System.arraycopy(p, tileIndex, buf, bufIndex, cols);
+                } else {
+                    boolean whole = (cols == tileRight - tileLeft && rows == tileBottom - tileTop);
+                    int[] p = residentPixels(t, !whole);
+                    if (whole)
+                        t.dropped = false;
+                    if (mode == WRITE) {
+                        for (int r = 0; r < rows; r++, bufIndex += stride, tileIndex += TILE_SIZE)
+                            System.arraycopy(buf, bufIndex, p, tileIndex, cols);
+                    } else {
+                        for (int r = 0; r < rows; r++, tileIndex += TILE_SIZE)
+                            Arrays.fill(p, tileIndex, tileIndex + cols, color);
+                    }
+                }
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Makes a tile resident, making room by compressing the least recently used resident tile.
+     * @param needContents False if the caller is about to overwrite the whole tile anyway
+     * @return The tile's pixels
+     */
+    private int[] residentPixels(Tile t, boolean needContents) {
+        if (t.pixels != null) {
+            touch(t);
+            return t.pixels;
+        }
+
+        if (resident >= maxResident)
+            evictTile();
+
+        int[] p = spare;
+        spare = null;
+        if (p == null)
+            p = new int[TILE_SIZE * TILE_SIZE];
+
+        if (t.packed != null) {
+            if (needContents && !unpack(t.packed, p))
+                t.dropped = true;
+            packedBytes -= t.packed.length;
+            t.packed = null;
+            packedTiles.remove(t);
+        } else if (needContents) {
+            Arrays.fill(p, 0);
+        }
+        t.pixels = p;
+        residentTiles.addFirst(t);
+        resident++;
+        return p;
+    }
+
+    /**
+     * Marks a resident tile as the most recently used.
+     */
+    private void touch(Tile t) {
+        if (residentTiles.head != t) {
+            residentTiles.remove(t);
+            residentTiles.addFirst(t);
+        }
+    }
+
+    /**
+     * Compresses the least recently used resident tile, and drops the oldest compressed tiles
+     * if they no longer fit into their share of memory.
+     */
+    private void evictTile() {
+        Tile victim = residentTiles.tail;
+        if (victim == null)
+            return;
+
+        // Tiles are compressed in order of last use, so the packed list stays in that order too.
+        residentTiles.remove(victim);
+        victim.packed = pack(victim.pixels);
+        packedBytes += victim.packed.length;
+        packedTiles.addFirst(victim);
+        spare = victim.pixels;
+        victim.pixels = null;
+        resident--;
+
+        while (packedBytes > maxPacked) {
+            Tile oldest = packedTiles.tail;
+            packedTiles.remove(oldest);
+            packedBytes -= oldest.packed.length;
+            oldest.packed = null;
+            oldest.dropped = true;
+        }
+    }
+
+    private byte[] pack(int[] p) {
+        int n = 0;
+        for (int i = 0; i < p.length; i++) {
+            int c = p[i];
+            tileBytes[n++] = (byte)(c >> 16);
+            tileBytes[n++] = (byte)(c >> 8);
+            tileBytes[n++] = (byte)c;
+        }
+        deflater.reset();
+        deflater.setInput(tileBytes, 0, n);
+        deflater.finish();
+        int len = deflater.deflate(packBuffer);
+        return Arrays.copyOf(packBuffer, len);
+    }
+
+    private boolean unpack(byte[] packed, int[] p) {
+        inflater.reset();
+        inflater.setInput(packed);
+        try {
+            if (inflater.inflate(tileBytes) != tileBytes.length)
+                throw new DataFormatException("Tile is short");
+        } catch (DataFormatException e) {
+            Log.e("PBM", "Could not inflate tile: " + e.getMessage());
+            Arrays.fill(p, 0);
+            return false;
+        }
+        int n = 0;
+        for (int i = 0; i < p.length; i++, n += 3) {
+            p[i] = 0xFF000000 | (tileBytes[n] & 0xFF) << 16 | (tileBytes[n + 1] & 0xFF) << 8 | (tileBytes[n + 2] & 0xFF);
+        }
+        return true;
+    }
+
+    /**
+     * Draws the resident tiles within the given area of the desktop, and a placeholder for the
+     * compressed ones, which are then paged in off the UI thread.
+     */
+    private synchronized void drawTiles(Canvas canvas, Rect area, Paint paint) {
+        if (tiles == null)
+            return;
+
+        boolean missing = false;
+        int right  = Math.min(area.right,  bitmapwidth);
+        int bottom = Math.min(area.bottom, bitmapheight);
+        for (int ty = Math.max(area.top, 0) / TILE_SIZE; ty * TILE_SIZE < bottom; ty++) {
+            for (int tx = Math.max(area.left, 0) / TILE_SIZE; tx * TILE_SIZE < right; tx++) {
+                Tile t = tiles[ty * tilesAcross + tx];
+                int tileLeft = tx * TILE_SIZE;
+                int tileTop  = ty * TILE_SIZE;
+                int w = Math.min(TILE_SIZE, bitmapwidth  - tileLeft);
+                int h = Math.min(TILE_SIZE, bitmapheight - tileTop);
+                if (t.pixels != null) {
+                    touch(t);
+                    canvas.drawBitmap(t.pixels, 0, TILE_SIZE, tileLeft, tileTop, w, h, false, paint);
+                } else if (t.packed != null || t.dropped) {
+                    canvas.drawRect(tileLeft, tileTop, tileLeft + w, tileTop + h, placeholderPaint);
+                    missing |= (t.packed != null);
+                }
+            }
+        }
+        if (missing)
+            queuePaging();
+    }
+
+    /**
+     * Has the tiles in view paged in by the paging thread, unless that is already due.
+     */
+    private void queuePaging() {
+        if (pagingQueued.compareAndSet(false, true))
+            getPager().execute(pageIn);
+    }
+
+    /**
+     * Inflates the compressed tiles in view, redraws them, and requests the dropped ones.
+     */
+    private void pageInVisibleTiles() {
+        int x, y, w, h;
+        boolean paged = false;
+        synchronized (this) {
+            if (tiles == null)
+                return;
+            x = scrollX;
+            y = scrollY;
+            w = visibleWidth;
+            h = visibleHeight;
+            int right  = Math.min(x + w, bitmapwidth);
+            int bottom = Math.min(y + h, bitmapheight);
+            for (int ty = Math.max(y, 0) / TILE_SIZE; ty * TILE_SIZE < bottom; ty++) {
+                for (int tx = Math.max(x, 0) / TILE_SIZE; tx * TILE_SIZE < right; tx++) {
+                    Tile t = tiles[ty * tilesAcross + tx];
+                    if (t.pixels == null && t.packed != null) {
+                        residentPixels(t, true);
+                        paged = true;
+                    }
+                }
+            }
+        }
+        if (paged)
+            vncCanvas.reDraw(x, y, w, h);
+        requestDroppedTiles();
+    }
+
+    private synchronized void markDropped(int x, int y, int w, int h) {
+        if (tiles == null)
+            return;
+        int right  = Math.min(x + w, bitmapwidth);
+        int bottom = Math.min(y + h, bitmapheight);
+        for (int ty = y / TILE_SIZE; ty * TILE_SIZE < bottom; ty++)
+            for (int tx = x / TILE_SIZE; tx * TILE_SIZE < right; tx++)
+                tiles[ty * tilesAcross + tx].dropped = true;
+    }
+
+    /**
+     * Requests the dropped tiles which are in view from the server.
+     */
+    private void requestDroppedTiles() {
+        int x, y, w, h;
+        synchronized (this) {
+            if (tiles == null)
+                return;
+            requestRect.setEmpty();
+            int right  = Math.min(scrollX + visibleWidth,  bitmapwidth);
+            int bottom = Math.min(scrollY + visibleHeight, bitmapheight);
+            for (int ty = Math.max(scrollY, 0) / TILE_SIZE; ty * TILE_SIZE < bottom; ty++) {
+                for (int tx = Math.max(scrollX, 0) / TILE_SIZE; tx * TILE_SIZE < right; tx++) {
+                    Tile t = tiles[ty * tilesAcross + tx];
+                    if (!t.dropped)
+                        continue;
+                    // The server will send the whole area, so it is no longer missing as far as we are concerned.
+                    t.dropped = false;
+                    requestRect.union(tx * TILE_SIZE, ty * TILE_SIZE,
+                                      Math.min((tx + 1) * TILE_SIZE, bitmapwidth),
+                                      Math.min((ty + 1) * TILE_SIZE, bitmapheight));
+                }
+            }
+            if (requestRect.isEmpty())
+                return;
+            x = requestRect.left;
+            y = requestRect.top;
+            w = requestRect.width();
+            h = requestRect.height();
+        }
+        rfb.writeFramebufferUpdateRequest(x, y, w, h, false);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#prepareFullUpdateRequest(boolean)
+     */
+    @Override
+    public synchronized void prepareFullUpdateRequest(boolean incremental) {
+        if (incremental || tiles == null)
+            return;
+        for (Tile t : tiles)
+            t.dropped = false;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#updateDone()
+     */
+    @Override
+    boolean updateDone() {
+        // Give back the memory of a staging area grown for a tall rectangle.
+        if (stageRows > STAGE_ROWS) {
+            stageRows    = Math.min(STAGE_ROWS, bitmapheight);
+            bitmapPixels = new int[stageRows * bitmapwidth];
+        }
+        pageInVisibleTiles();
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#scrollChanged(int, int)
+     */
+    @Override
+    void scrollChanged(int newx, int newy) {
+        synchronized (this) {
+            scrollX       = newx;
+            scrollY       = newy;
+            visibleWidth  = vncCanvas.getVisibleWidth();
+            visibleHeight = vncCanvas.getVisibleHeight();
+        }
+        queuePaging();
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#syncScroll()
+     */
+    @Override
+    void syncScroll() {
+        // Don't need to do anything here
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#frameBufferSizeChanged(RfbProto)
+     */
+    @Override
+    public void frameBufferSizeChanged () {
+        framebufferwidth  = rfb.framebufferWidth();
+        framebufferheight = rfb.framebufferHeight();
+        dispose();
+        // Try to free up some memory.
+        System.gc();
+        allocateObjects();
+        drawable = createDrawable();
+        drawable.startDrawing();
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#dispose()
+     */
+    @Override
+    synchronized void dispose() {
+        tiles = null;
+        residentTiles = null;
+        packedTiles   = null;
+        spare = null;
+        if (deflater != null)
+            deflater.end();
+        if (inflater != null)
+            inflater.end();
+        deflater = null;
+        inflater = null;
+        super.dispose();
+    }
+}
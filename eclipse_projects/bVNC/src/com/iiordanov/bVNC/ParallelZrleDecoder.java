@@ -0,0 +1,366 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decodes large ZRLE rectangles in two phases.
+ * <p>
+ * The zlib stream of a ZRLE session is sequential, so the whole rectangle is first inflated
+ * into a single reusable buffer and its 64x64 tiles are located. The palette, RLE and
+ * packed-pixel expansion of the tiles is then spread over a small pool of worker threads,
+ * each writing its tiles directly into bitmapPixels. Since tiles never overlap, no locking
+ * is needed, and the bitmap is updated once for the whole rectangle.
+ * </p>
+ */
+class ParallelZrleDecoder {
+    private final static String TAG = "ParallelZrleDecoder";
+
+    static final int THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    // Rectangles with fewer tiles than this are cheaper to decode on a single thread.
+    static final int MIN_TILES = 8;
+
+    private static ExecutorService executor;
+
+    // The inflated rectangle, in a buffer which grows with the data. A buffer grown past
+    // MAX_KEPT_SIZE for an exceptionally large rectangle is given back afterwards.
+    static final int DEFAULT_SIZE  = 65536;
+    static final int MAX_KEPT_SIZE = 1024 * 1024;
+    private byte[] inflated = new byte[DEFAULT_SIZE];
+
+    // Location, type and data offsets of each tile in the inflated buffer.
+    private int nTiles;
+    private int[] tileX      = new int[64];
+    private int[] tileY      = new int[64];
+    private int[] tileW      = new int[64];
+    private int[] tileH      = new int[64];
+    private int[] tileMode   = new int[64];
+    private int[] tileOffset = new int[64];
+    private int[] tileEnd    = new int[64];
+
+    // Parameters of the rectangle currently being decoded, shared with the workers.
+    private AbstractBitmapData bitmapData;
+    private int[] colorPalette;
+    private int pixelBytes;
+
+    private Worker[] workers;
+
+    /**
+     * @return true if a w by h rectangle is big enough to be worth decoding in parallel.
+     */
+    static boolean isWorthwhile(int w, int h) {
+        return THREADS > 1 && ((w + 63) / 64) * ((h + 63) / 64) >= MIN_TILES;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, TAG);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Decodes a ZRLE rectangle whose compressed data is the underlying stream of zis.
+     * The compressed data is always consumed to keep the zlib stream in sync, but
+     * pixels are only written if valid is true. Uploading them into the bitmap is
+     * left to the caller.
+     */
+    void decode(ZlibInStream zis, AbstractBitmapData bitmapData, int bytesPerPixel, int[] colorPalette,
+                int x, int y, int w, int h, boolean valid) throws Exception {
+        this.bitmapData   = bitmapData;
+        this.colorPalette = colorPalette;
+        this.pixelBytes   = (bytesPerPixel == 1) ? 1 : 3;
+
+        // Phase one: inflate the whole rectangle. Every tile is at most a mode byte and a full
+        // palette, followed by a pixel value and a run-length byte per pixel, so more data than
+        // that can only be corrupt.
+        int maxTiles = ((w + 63) / 64) * ((h + 63) / 64);
+        long maxSize = maxTiles * (1L + 127 * pixelBytes) + (long)w * h * (pixelBytes + 1);
+        inflated = zis.readAll(inflated, (int)Math.min(maxSize, Integer.MAX_VALUE));
+        int inflatedLen = zis.readAllLength;
+
+        try {
+            if (valid)
+                expand(x, y, w, h, inflatedLen);
+        } finally {
+            if (inflated.length > MAX_KEPT_SIZE)
+                inflated = new byte[DEFAULT_SIZE];
+        }
+    }
+
+    private void expand(int x, int y, int w, int h, int inflatedLen) throws Exception {
+        // Phase two: find where each tile starts.
+        scanTiles(x, y, w, h, inflatedLen);
+
+        // Phase three: expand tiles on the worker threads.
+        if (workers == null) {
+            workers = new Worker[THREADS];
+            for (int i = 0; i < THREADS; i++)
+                workers[i] = new Worker(i);
+        }
+        CountDownLatch done = new CountDownLatch(THREADS);
+        ExecutorService e = getExecutor();
+        for (int i = 0; i < THREADS; i++) {
+            workers[i].start(done);
+            e.execute(workers[i]);
+        }
+        done.await();
+        for (int i = 0; i < THREADS; i++) {
+            if (workers[i].error != null)
+                throw workers[i].error;
+        }
+    }
+
+    private void scanTiles(int x, int y, int w, int h, int len) throws Exception {
+        int tiles = ((w + 63) / 64) * ((h + 63) / 64);
+        if (tileX.length < tiles) {
+            tileX      = new int[tiles];
+            tileY      = new int[tiles];
+            tileW      = new int[tiles];
+            tileH      = new int[tiles];
+            tileMode   = new int[tiles];
+            tileOffset = new int[tiles];
+            tileEnd    = new int[tiles];
+        }
+
+        nTiles = 0;
+        int ptr = 0;
+        for (int ty = y; ty < y + h; ty += 64) {
+            int th = Math.min(y + h - ty, 64);
+            for (int tx = x; tx < x + w; tx += 64) {
+                int tw = Math.min(x + w - tx, 64);
+                if (ptr >= len)
+                    throw new Exception("ZRLE decoder: tile data truncated");
+                int mode = inflated[ptr++] & 0xFF;
+                tileX[nTiles] = tx;
+                tileY[nTiles] = ty;
+                tileW[nTiles] = tw;
+                tileH[nTiles] = th;
+                tileMode[nTiles] = mode;
+                tileOffset[nTiles] = ptr;
+                ptr = skipTile(ptr, mode, tw, th, len);
+                tileEnd[nTiles] = ptr;
+                nTiles++;
+            }
+        }
+    }
+
+    /**
+     * Throws if the byte at ptr is past the end of the data, which is at len.
+     */
+    private static void checkRead(int ptr, int len) throws Exception {
+        if (ptr >= len)
+            throw new Exception("ZRLE decoder: tile data truncated");
+    }
+
+    /**
+     * @return Offset of the byte following the tile data starting at ptr, which may be at most len.
+     */
+    private int skipTile(int ptr, int mode, int tw, int th, int len) throws Exception {
+        boolean rle = (mode & 128) != 0;
+        int palSize = mode & 127;
+        ptr += palSize * pixelBytes;
+
+        if (!rle || palSize == 1) {
+            if (palSize == 0) {
+                ptr += tw * th * pixelBytes;
+            } else if (palSize > 1) {
+                int bppp = ((palSize > 16) ? 8 : ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1)));
+                ptr += th * ((tw * bppp + 7) / 8);
+            }
+            if (ptr > len)
+                throw new Exception("ZRLE decoder: tile data truncated");
+            return ptr;
+        }
+
+        int remaining = tw * th;
+        while (remaining > 0) {
+            int runLength = 1;
+            boolean run = true;
+            if (palSize == 0) {
+                ptr += pixelBytes;
+            } else {
+                checkRead(ptr, len);
+                run = (inflated[ptr++] & 128) != 0;
+            }
+            if (run) {
+                int b;
+                do {
+                    checkRead(ptr, len);
+                    b = inflated[ptr++] & 0xFF;
+                    runLength += b;
+                } while (b == 255);
+            }
+            if (runLength > remaining)
+                throw new Exception("ZRLE decoder: assertion failed (len <= end - ptr)");
+            remaining -= runLength;
+        }
+        return ptr;
+    }
+
+    /**
+     * Expands every THREADS-th tile, starting with its own index, straight into bitmapPixels.
+     */
+    private class Worker implements Runnable {
+        private int first;
+        private int[] palette = new int[128];
+        private CountDownLatch done;
+        Exception error;
+
+        Worker(int first) {
+            this.first = first;
+        }
+
+        void start(CountDownLatch done) {
+            this.done = done;
+            this.error = null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int t = first; t < nTiles; t += THREADS)
+                    expandTile(t);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                error = new Exception("ZRLE decoder: tile data out of bounds");
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private int readPixel(int ptr) {
+            if (pixelBytes == 1)
+                return inflated[ptr] & 0xFF;
+            return (inflated[ptr + 2] & 0xFF) << 16 | (inflated[ptr + 1] & 0xFF) << 8 | (inflated[ptr] & 0xFF);
+        }
+
+        /**
+         * Maps a pixel value read from the stream to the colour written to the framebuffer.
+         */
+        private int toColor(int pix) {
+            return (pixelBytes == 1) ? colorPalette[0xFF & pix] : pix;
+        }
+
+        private void expandTile(int t) throws Exception {
+            int[] pixels = bitmapData.bitmapPixels;
+            int stride = bitmapData.bitmapwidth;
+            int tw = tileW[t];
+            int th = tileH[t];
+            int mode = tileMode[t];
+            int ptr = tileOffset[t];
+            // Where scanTiles found the tile data to end, within the inflated length.
+            int limit = tileEnd[t];
+            int rowStart = bitmapData.offset(tileX[t], tileY[t]);
+            boolean rle = (mode & 128) != 0;
+            int palSize = mode & 127;
+
+            for (int i = 0; i < palSize; i++, ptr += pixelBytes)
+                palette[i] = toColor(readPixel(ptr));
+
+            if (palSize == 1) {
+                int c = (pixelBytes == 1) ? palette[0] : (0xFF000000 | palette[0]);
+                for (int j = 0; j < th; j++, rowStart += stride)
+                    Arrays.fill(pixels, rowStart, rowStart + tw, c);
+                return;
+            }
+
+            if (!rle) {
+                if (palSize == 0) {
+                    for (int j = 0; j < th; j++, rowStart += stride) {
+                        for (int i = 0; i < tw; i++, ptr += pixelBytes)
+                            pixels[rowStart + i] = toColor(readPixel(ptr));
+                    }
+                } else {
+                    int bppp = ((palSize > 16) ? 8 : ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1)));
+                    int mask = ((1 << bppp) - 1) & 127;
+                    for (int j = 0; j < th; j++, rowStart += stride) {
+                        int b = 0;
+                        int nbits = 0;
+                        for (int i = 0; i < tw; i++) {
+                            if (nbits == 0) {
+                                b = inflated[ptr++] & 0xFF;
+                                nbits = 8;
+                            }
+                            nbits -= bppp;
+                            pixels[rowStart + i] = palette[(b >> nbits) & mask];
+                        }
+                    }
+                }
+                return;
+            }
+
+            // Runs may wrap from one row of the tile to the next.
+            int col = 0;
+            int end = tw * th;
+            int filled = 0;
+            while (filled < end) {
+                int c;
+                int len = 1;
+                boolean run = true;
+                if (palSize == 0) {
+                    checkRead(ptr + pixelBytes - 1, limit);
+                    c = toColor(readPixel(ptr));
+                    ptr += pixelBytes;
+                } else {
+                    checkRead(ptr, limit);
+                    int index = inflated[ptr++] & 0xFF;
+                    run = (index & 128) != 0;
+                    c = palette[index & 127];
+                }
+                if (run) {
+                    int b;
+                    do {
+                        checkRead(ptr, limit);
+                        b = inflated[ptr++] & 0xFF;
+                        len += b;
+                    } while (b == 255);
+                }
+                if (len > end - filled)
+                    throw new Exception("ZRLE decoder: assertion failed (len <= end - ptr)");
+                filled += len;
+                while (len > 0) {
+                    int n = Math.min(len, tw - col);
+                    Arrays.fill(pixels, rowStart + col, rowStart + col + n, c);
+                    len -= n;
+                    col += n;
+                    if (col == tw) {
+                        col = 0;
+                        rowStart += stride;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Converts runs of pixels received from the server into the 0x00RRGGBB values kept in bitmapPixels.
+ * <p>
+ * Each method converts a whole row (or any other run of pixels) in one tight loop, so that the
+ * decoders do not each carry their own copy of the byte shuffling. Four-byte pixels are read
+ * through a little-endian IntBuffer view of the source array, which turns the conversion into a
+ * bulk copy followed by a mask. The view is made once by bgrxView() and kept by the caller along
+ * with the array, so that the methods hold no state and may be used from any thread.
+ * </p>
+ */
+class PixelConverter {
+
+    /**
+     * @return A view of src to pass to fromBGRX(), valid for as long as src is the array read from.
+     */
+    static IntBuffer bgrxView(byte[] src) {
+        return ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /**
+     * Converts 32bpp little-endian pixels (B, G, R, padding), as requested by the client's
+     * 24-bit pixel format.
+     * @param src View of the source bytes made by bgrxView(). srcOffset must be a multiple of four.
+     */
+    static void fromBGRX(IntBuffer src, int srcOffset, int[] dst, int dstOffset, int count) {
+        src.position(srcOffset >> 2);
+        src.get(dst, dstOffset, count);
+        final int end = dstOffset + count;
+        for (int i = dstOffset; i < end; i++) {
+            dst[i] &= 0x00FFFFFF;
+        }
+    }
+
+    /**
+     * Converts three-byte pixels sent in R, G, B order (Tight's TPIXEL).
+     */
+    static void fromRGB(byte[] src, int srcOffset, int[] dst, int dstOffset, int count) {
+        final int end = dstOffset + count;
+        for (int i = dstOffset, s = srcOffset; i < end; i++, s += 3) {
+            dst[i] = (src[s] & 0xFF) << 16 | (src[s + 1] & 0xFF) << 8 | (src[s + 2] & 0xFF);
+        }
+    }
+
+    /**
+     * Converts three-byte pixels sent in B, G, R order (ZRLE's CPIXEL).
+     */
+    static void fromBGR(byte[] src, int srcOffset, int[] dst, int dstOffset, int count) {
+        final int end = dstOffset + count;
+        for (int i = dstOffset, s = srcOffset; i < end; i++, s += 3) {
+            dst[i] = (src[s + 2] & 0xFF) << 16 | (src[s + 1] & 0xFF) << 8 | (src[s] & 0xFF);
+        }
+    }
+
+    /**
+     * Converts one-byte palette indices using the given palette.
+     */
+    static void fromIndexed(byte[] src, int srcOffset, int[] palette, int[] dst, int dstOffset, int count) {
+        final int end = dstOffset + count;
+        for (int i = dstOffset, s = srcOffset; i < end; i++, s++) {
+            dst[i] = palette[src[s] & 0xFF];
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+/**
+ * Chooses the compression level, JPEG quality and color depth to ask the server for,
+ * based on the bandwidth measured while receiving framebuffer updates.
+ * <p>
+ * The bandwidth is sorted into one of three levels. Slow links get the most compression,
+ * low JPEG quality and, if the user chose 24-bit color, 256 colors. Fast links get little
+ * compression, which saves time on both ends, and high JPEG quality. Each level has a
+ * margin around it, and the measured rate has to stay outside of it for a while before
+ * the level changes, so that the settings do not flip back and forth.
+ * </p>
+ */
+class QualityController {
+    static final int SLOW = 0, MEDIUM = 1, FAST = 2;
+
+    // Rates in kbit/s below which we drop a level, and above which we rise a level.
+    private static final long[] DOWN_KBITS = { 0, 512, 5000 };
+    private static final long[] UP_KBITS   = { 1024, 10000, Long.MAX_VALUE };
+
+    private static final int[] COMPRESS_LEVEL = { 9, 6, 1 };
+    private static final int[] JPEG_QUALITY   = { 3, 6, 8 };
+
+    // How long the rate has to stay outside the current level before we change it.
+    private static final long SUSTAIN_MILLIS = 3000;
+
+    private int level = MEDIUM;
+    private long outOfRangeSince = 0;
+
+    /**
+     * Feeds in the latest bandwidth measurement.
+     * @param kbitsPerSecond Measured bandwidth.
+     * @param now Current time in milliseconds.
+     * @return true if the level changed, and the settings should be sent to the server.
+     */
+    boolean update(long kbitsPerSecond, long now) {
+        int target = level;
+        if (kbitsPerSecond < DOWN_KBITS[level])
+            target = level - 1;
+        else if (kbitsPerSecond > UP_KBITS[level])
+            target = level + 1;
+
+        if (target == level) {
+            outOfRangeSince = 0;
+            return false;
+        }
+        if (outOfRangeSince == 0) {
+            outOfRangeSince = now;
+            return false;
+        }
+        if (now - outOfRangeSince < SUSTAIN_MILLIS)
+            return false;
+
+        level = target;
+        outOfRangeSince = 0;
+        return true;
+    }
+
+    int level() {
+        return level;
+    }
+
+    int compressLevel() {
+        return COMPRESS_LEVEL[level];
+    }
+
+    int jpegQuality() {
+        return JPEG_QUALITY[level];
+    }
+
+    /**
+     * @param chosen The color model chosen by the user.
+     * @return The color model to use at the current level.
+     */
+    COLORMODEL colorModel(COLORMODEL chosen) {
+        if (level == SLOW && chosen == COLORMODEL.C24bit)
+            return COLORMODEL.C256;
+        return chosen;
+    }
+
+    static String levelName(int level) {
+        switch (level) {
+        case SLOW:
+            return "slow";
+        case MEDIUM:
+            return "medium";
+        case FAST:
+            return "fast";
+        }
+        return "unknown";
+    }
+}
@@ -1,5 +1,10 @@
 package com.iiordanov.bVNC;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import com.freerdp.freerdpcore.application.SessionState;
 import com.freerdp.freerdpcore.domain.ManualBookmark;
 import com.freerdp.freerdpcore.services.LibFreeRDP;
@@ -21,14 +26,74 @@ public class RdpCommunicator implements RfbConnectable, RdpKeyboardMapper.KeyPro
     final static int VK_LWIN = 0x5B;
     final static int VK_RWIN = 0x5C;
     final static int VK_EXT_KEY = 0x00000100;
+    final static int VK_TAB = 0x09;
+    final static int VK_RETURN = 0x0D;
+    
+    final static int MODIFIER_MASK = RemoteKeyboard.CTRL_MASK | RemoteKeyboard.RCTRL_MASK |
+                                     RemoteKeyboard.ALT_MASK | RemoteKeyboard.RALT_MASK |
+                                     RemoteKeyboard.SUPER_MASK | RemoteKeyboard.RSUPER_MASK |
+                                     RemoteKeyboard.SHIFT_MASK | RemoteKeyboard.RSHIFT_MASK;
+    
+    // Pressed modifier keys are given this long to take effect before the key they modify is sent,
+    // and the key as long again before they are released.
+    final static int MODIFIER_PACING_MILLIS = 5;
+    // How long closing waits for queued input, such as modifier releases, to be sent.
+    final static int CLOSE_TIMEOUT_MILLIS = 250;
     
     SessionState session;
     int metaState = 0;
 
     boolean isInNormalProtocol = false;
 
+    // Input is sent in order from a thread of its own, so that pacing it never holds the caller up.
+    private ExecutorService inputExecutor;
+    // Pointer motion queued but not sent yet, which further motion updates rather than queueing more.
+    private PointerEvent pendingMotion = null;
+
+    private class PointerEvent implements Runnable {
+        int x, y, metaState, pointerMask;
+
+        PointerEvent(int x, int y, int metaState, int pointerMask) {
+            this.x = x;
+            this.y = y;
+            this.metaState = metaState;
+            this.pointerMask = pointerMask;
+        }
+
+        public void run() {
+            synchronized (RdpCommunicator.this) {
+                if (pendingMotion == this)
+                    pendingMotion = null;
+            }
+            if ((pointerMask & RemotePointer.POINTER_DOWN_MASK) != 0) {
+                sendModifierKeys(metaState, true);
+            }
+            LibFreeRDP.sendCursorEvent(session.getInstance(), x, y, pointerMask);
+            if ((pointerMask & RemotePointer.POINTER_DOWN_MASK) == 0) {
+                sendModifierKeys(metaState, false);
+            }
+        }
+    }
+
     RdpCommunicator (SessionState session) {
         this.session = session;
+        inputExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queues input to be sent after everything queued before it.
+     */
+    private synchronized void queueInput(Runnable event) {
+        pendingMotion = null;
+        if (!inputExecutor.isShutdown())
+            inputExecutor.execute(event);
     }
 
     @Override
@@ -74,13 +139,18 @@ public class RdpCommunicator implements RfbConnectable, RdpKeyboardMapper.KeyPro
     @Override
     public void writePointerEvent(int x, int y, int metaState, int pointerMask) {
         this.metaState = metaState;
-        if ((pointerMask & RemotePointer.POINTER_DOWN_MASK) != 0) {
-            sendModifierKeys(true);
-        }
-        try { Thread.sleep(5); } catch (InterruptedException e) {}
-        LibFreeRDP.sendCursorEvent(session.getInstance(), x, y, pointerMask);
-        if ((pointerMask & RemotePointer.POINTER_DOWN_MASK) == 0) {
-            sendModifierKeys(false);
+        synchronized (this) {
+            PointerEvent motion = pendingMotion;
+            if (motion != null && motion.pointerMask == pointerMask && motion.metaState == metaState) {
+                motion.x = x;
+                motion.y = y;
+                return;
+            }
+            PointerEvent event = new PointerEvent(x, y, metaState, pointerMask);
+            queueInput(event);
+            // Unlike button and wheel events, motion can be merged without losing anything.
+            if ((pointerMask & ~RemotePointer.POINTER_DOWN_MASK) == RemoteRdpPointer.MOUSE_BUTTON_MOVE)
+                pendingMotion = event;
         }
     }
 
@@ -93,6 +163,11 @@ public class RdpCommunicator implements RfbConnectable, RdpKeyboardMapper.KeyPro
         this.metaState = metaState;
     }
 
+    @Override
+    public void writeKeySyms(int[] keysyms, int count, int metaState) {
+        // NOT USED for RDP.
+    }
+
     @Override
     public void writeSetPixelFormat(int bitsPerPixel, int depth,
             boolean bigEndian, boolean trueColour, int redMax, int greenMax,
@@ -122,76 +197,125 @@ public class RdpCommunicator implements RfbConnectable, RdpKeyboardMapper.KeyPro
     @Override
     public void close() {
         setIsInNormalProtocol(false);
+        synchronized (this) {
+            inputExecutor.shutdown();
+        }
+        // Input already queued is still sent, outside the lock the pointer events take.
+        try {
+            inputExecutor.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         long instance = session.getInstance();
         DisconnectThread d = new DisconnectThread(instance);
         d.start();
     }
     
-    private void sendModifierKeys (boolean down) {
+    /**
+     * Presses or releases the modifier keys in metaState, pausing between them and the key they
+     * modify: after pressing them, and before releasing them. Runs on the input thread.
+     */
+    private void sendModifierKeys (int metaState, boolean down) {
+        if ((metaState & MODIFIER_MASK) == 0)
+            return;
+        if (!down)
+            pace();
         if ((metaState & RemoteKeyboard.CTRL_MASK) != 0) {
             //android.util.Log.e("RdpCommunicator", "Sending LCTRL " + down);
-            try { Thread.sleep(5); } catch (InterruptedException e) {}
             LibFreeRDP.sendKeyEvent(session.getInstance(), VK_LCONTROL, down);
         }
         if ((metaState & RemoteKeyboard.RCTRL_MASK) != 0) {
             //android.util.Log.e("RdpCommunicator", "Sending RCTRL " + down);
-            try { Thread.sleep(5); } catch (InterruptedException e) {}
             LibFreeRDP.sendKeyEvent(session.getInstance(), VK_RCONTROL, down);
         }
         if ((metaState & RemoteKeyboard.ALT_MASK) != 0) {
             //android.util.Log.e("RdpCommunicator", "Sending LALT " + down);
-            try { Thread.sleep(5); } catch (InterruptedException e) {}
             LibFreeRDP.sendKeyEvent(session.getInstance(), VK_LMENU, down);
         }
         if ((metaState & RemoteKeyboard.RALT_MASK) != 0) {
             //android.util.Log.e("RdpCommunicator", "Sending RALT " + down);
-            try { Thread.sleep(5); } catch (InterruptedException e) {}
             LibFreeRDP.sendKeyEvent(session.getInstance(), VK_RMENU, down);
         }
         if ((metaState & RemoteKeyboard.SUPER_MASK) != 0) {
             //android.util.Log.e("RdpCommunicator", "Sending LSUPER " + down);
-            try { Thread.sleep(5); } catch (InterruptedException e) {}
             LibFreeRDP.sendKeyEvent(session.getInstance(), VK_LWIN | VK_EXT_KEY, down);
         }
         if ((metaState & RemoteKeyboard.RSUPER_MASK) != 0) {
             //android.util.Log.e("RdpCommunicator", "Sending RSUPER " + down);
-            try { Thread.sleep(5); } catch (InterruptedException e) {}
             LibFreeRDP.sendKeyEvent(session.getInstance(), VK_RWIN | VK_EXT_KEY, down);
         }
         if ((metaState & RemoteKeyboard.SHIFT_MASK) != 0) {
             //android.util.Log.e("RdpCommunicator", "Sending LSHIFT " + down);
-            try { Thread.sleep(5); } catch (InterruptedException e) {}
             LibFreeRDP.sendKeyEvent(session.getInstance(), VK_LSHIFT, down);
         }
         if ((metaState & RemoteKeyboard.RSHIFT_MASK) != 0) {
             //android.util.Log.e("RdpCommunicator", "Sending RSHIFT " + down);
-            try { Thread.sleep(5); } catch (InterruptedException e) {}
             LibFreeRDP.sendKeyEvent(session.getInstance(), VK_RSHIFT, down);
         }
+        if (down)
+            pace();
+    }
+
+    private static void pace() {
+        try { Thread.sleep(MODIFIER_PACING_MILLIS); } catch (InterruptedException e) {}
     }
     
     // ****************************************************************************
     // KeyboardMapper.KeyProcessingListener implementation
     @Override
-    public void processVirtualKey(int virtualKeyCode, boolean down) {
-        if (down) {
-            sendModifierKeys(true);
-        }
-        //android.util.Log.e("RdpCommunicator", "Sending VK key: " + virtualKeyCode + ". Is it down: " + down);
-        try { Thread.sleep(5); } catch (InterruptedException e) {}
-        LibFreeRDP.sendKeyEvent(session.getInstance(), virtualKeyCode, down);
-        if (!down) {
-            sendModifierKeys(false);
-        }
+    public void processVirtualKey(final int virtualKeyCode, final boolean down) {
+        final int metaState = this.metaState;
+        queueInput(new Runnable() {
+            public void run() {
+                if (down) {
+                    sendModifierKeys(metaState, true);
+                }
+                //android.util.Log.e("RdpCommunicator", "Sending VK key: " + virtualKeyCode + ". Is it down: " + down);
+                LibFreeRDP.sendKeyEvent(session.getInstance(), virtualKeyCode, down);
+                if (!down) {
+                    sendModifierKeys(metaState, false);
+                }
+            }
+        });
     }
 
     @Override
-    public void processUnicodeKey(int unicodeKey) {
+    public void processUnicodeKey(final int unicodeKey) {
         android.util.Log.e(TAG, "Unicode character: " + unicodeKey);
-        sendModifierKeys(true);
-        try { Thread.sleep(5); } catch (InterruptedException e) {}
-        LibFreeRDP.sendUnicodeKeyEvent(session.getInstance(), unicodeKey);
-        sendModifierKeys(false);
+        final int metaState = this.metaState;
+        queueInput(new Runnable() {
+            public void run() {
+                sendModifierKeys(metaState, true);
+                LibFreeRDP.sendUnicodeKeyEvent(session.getInstance(), unicodeKey);
+                sendModifierKeys(metaState, false);
+            }
+        });
+    }
+
+    /**
+     * Types text from the input thread in a single task, without pausing between characters.
+     * Line breaks and tabs are typed as their keys, and other control characters are skipped.
+     */
+    public void writeText(final String s) {
+        queueInput(new Runnable() {
+            public void run() {
+                long instance = session.getInstance();
+                for (int i = 0; i < s.length(); i++) {
+                    // Stop typing into a session which is being closed.
+                    if (Thread.currentThread().isInterrupted())
+                        return;
+                    char c = s.charAt(i);
+                    if (c == '\n' || c == '\t') {
+                        int virtualKeyCode = (c == '\n') ? VK_RETURN : VK_TAB;
+                        LibFreeRDP.sendKeyEvent(instance, virtualKeyCode, true);
+                        LibFreeRDP.sendKeyEvent(instance, virtualKeyCode, false);
+                    } else if (!Character.isISOControl(c)) {
+                        // Characters beyond the BMP go as their two UTF-16 units, which is what Windows expects.
+                        LibFreeRDP.sendUnicodeKeyEvent(instance, c);
+                    }
+                }
+            }
+        });
     }
 
     @Override
@@ -30,6 +30,7 @@
 
 package com.iiordanov.bVNC;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.security.NoSuchAlgorithmException;
@@ -44,6 +45,10 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Build;
 import android.os.Bundle;
@@ -120,6 +125,13 @@ public class RemoteCanvas extends ImageView implements UIEventListener, EventLis
     // RFB Decoder
     Decoder decoder = null;
     
+    // Performance figures of the VNC session, and whether they are drawn over the desktop.
+    private SessionMetrics sessionMetrics = null;
+    private boolean showMetrics = false;
+    private Paint metricsPaint = null;
+    private Paint metricsBackground = null;
+    private Rect metricsRect = new Rect();
+    
     // The remote pointer and keyboard
     RemotePointer pointer;
     RemoteKeyboard keyboard;
@@ -190,6 +202,37 @@ public class RemoteCanvas extends ImageView implements UIEventListener, EventLis
      */
     boolean bb = false;
     
+    /*
+     * When only a small part of the desktop is in view, updates are requested for the visible part
+     * ahead of the rest, so that its changes are not held up while the whole desktop is encoded and sent.
+     * Servers answer requests they hold at the same time with a single update covering all of them, so
+     * rather than being sent together, the request for the rest of the desktop goes out on its own:
+     * straight after a refresh of the visible part, and otherwise at most BACKGROUND_REQUEST_MILLIS after
+     * a request for the visible part which is still outstanding.
+     */
+    static final int BACKGROUND_REQUEST_MILLIS = 250;
+    // The visible part is only requested on its own if it is at most this fraction of the desktop.
+    static final float MAX_VIEWPORT_FRACTION = 0.5f;
+    private final Object updateRequestLock = new Object();
+    private Rect viewportRequest = new Rect();
+    private boolean viewportRequestOutstanding = false;
+    private boolean fullRefreshPending = false;
+    private long lastBackgroundRequest = 0;
+    private Runnable backgroundRequest = new Runnable() {
+        public void run() {
+            synchronized (updateRequestLock) {
+                if (!viewportRequestOutstanding)
+                    return;
+                long wait = lastBackgroundRequest + BACKGROUND_REQUEST_MILLIS - SystemClock.uptimeMillis();
+                if (wait > 0) {
+                    handler.postDelayed(this, wait);
+                    return;
+                }
+                writeWholeUpdateRequest(true);
+            }
+        }
+    };
+    
     /**
      * Constructor used by the inflation apparatus
      * 
@@ -430,14 +473,23 @@ public class RemoteCanvas extends ImageView implements UIEventListener, EventLis
         int vncPort = getPort(connection.getPort());
         boolean sslTunneled = connection.getConnectionType() == Constants.CONN_TYPE_STUNNEL;
 
+        boolean playback = address.startsWith(Constants.sessionPlaybackPrefix);
+
         try {
-            rfb = new RfbProto(decoder, this, address, vncPort, connection.getPrefEncoding(), connection.getViewOnly(),
-                                connection.getUseLocalCursor(), sslTunneled, connection.getIdHashAlgorithm(),
-                                connection.getIdHash(), connection.getSshHostKey());
-            Log.v(TAG, "Connected to server: " + address + " at port: " + vncPort);
-            rfb.initializeAndAuthenticate(connection.getUserName(), connection.getPassword(),
-                                          connection.getUseRepeater(), connection.getRepeaterId(),
-                                          connection.getConnectionType(), connection.getSshHostKey());
+            if (playback) {
+                String sessionFile = address.substring(Constants.sessionPlaybackPrefix.length());
+                rfb = new RfbProto(decoder, this, sessionFile, connection.getPrefEncoding(),
+                                   connection.getUseLocalCursor());
+                Log.v(TAG, "Playing back recorded session: " + sessionFile);
+            } else {
+                rfb = new RfbProto(decoder, this, address, vncPort, connection.getPrefEncoding(), connection.getViewOnly(),
+                                    connection.getUseLocalCursor(), sslTunneled, connection.getIdHashAlgorithm(),
+                                    connection.getIdHash(), connection.getSshHostKey());
+                Log.v(TAG, "Connected to server: " + address + " at port: " + vncPort);
+                rfb.initializeAndAuthenticate(connection.getUserName(), connection.getPassword(),
+                                              connection.getUseRepeater(), connection.getRepeaterId(),
+                                              connection.getConnectionType(), connection.getSshHostKey());
+            }
         } catch (AnonCipherUnsupportedException e) {
             showFatalMessageAndQuit (getContext().getString(R.string.error_anon_dh_unsupported));
         } catch (Exception e) {
@@ -447,13 +499,29 @@ public class RemoteCanvas extends ImageView implements UIEventListener, EventLis
         }
         
         rfbconn = rfb;
+        sessionMetrics = rfb.getSessionMetrics();
         pointer = new RemoteVncPointer (rfbconn, RemoteCanvas.this, handler);
         boolean rAltAsIsoL3Shift = Utils.querySharedPreferenceBoolean(this.getContext(),
                                                                       Constants.rAltAsIsoL3ShiftTag);
         keyboard = new RemoteVncKeyboard (rfbconn, RemoteCanvas.this, handler, rAltAsIsoL3Shift);
+        ((RemoteVncKeyboard)keyboard).setPasteLongText(Utils.querySharedPreferenceBoolean(this.getContext(),
+                                                                                          Constants.pasteLongTextTag));
         
+        rfb.setPipelined(Utils.querySharedPreferenceBoolean(this.getContext(), Constants.pipelinedDecodingTag));
+        rfb.setAdaptiveQuality(!playback && Utils.querySharedPreferenceBoolean(this.getContext(), Constants.adaptiveQualityTag));
+        rfb.setPointerEventRate(Utils.querySharedPreferenceInt(this.getContext(), Constants.pointerEventRateTag,
+                                                               Constants.defaultPointerEventRate));
+        if (!playback && Utils.querySharedPreferenceBoolean(this.getContext(), Constants.recordSessionsTag)) {
+            File dir = getContext().getExternalFilesDir(null);
+            if (dir == null)
+                dir = getContext().getFilesDir();
+            rfb.setSessionFile(new File(dir, "session-" + System.currentTimeMillis() + ".fbs").getPath());
+        }
         rfb.writeClientInit();
         rfb.readServerInit();
+        // A recording can only be decoded in the pixel format it was recorded in.
+        if (playback)
+            decoder.setColorModel(COLORMODEL.fromDepth(rfb.depth));
         initializeBitmap (displayWidth, displayHeight);
         decoder.setPixelFormat(rfb);
         
@@ -615,18 +683,53 @@ public class RemoteCanvas extends ImageView implements UIEventListener, EventLis
         } else
             useFull = (connection.getForceFull() == BitmapImplHint.FULL);
         
+        boolean allocated = false;
+        if (!isRdp && !isSpice && connection.getForceFull() != BitmapImplHint.TILE &&
+            Utils.querySharedPreferenceBoolean(getContext(), Constants.offHeapFramebufferTag)) {
+            // The desktop does not count against the heap there, however large it is.
+            try {
+                myDrawable=new DirectBufferBitmapData(rfbconn, this);
+                useFull = true;
+                allocated = true;
+                android.util.Log.i(TAG, "Using DirectBufferBitmapData.");
+            } catch (Throwable e) {
+                disposeDrawable ();
+            }
+        }
+        
+        if (!allocated && !useFull && connection.getForceFull() == BitmapImplHint.AUTO && !isRdp && !isSpice &&
+            Utils.querySharedPreferenceBoolean(getContext(), Constants.pagedFramebufferTag)) {
+            // Keep the whole desktop in compressed tiles rather than only what is around the view.
+            try {
+                myDrawable=new PagedBitmapData(rfbconn, this, dx, dy, capacity);
+                useFull = true;
+                allocated = true;
+                android.util.Log.i(TAG, "Using PagedBitmapData.");
+            } catch (Throwable e) {
+                disposeDrawable ();
+            }
+        }
+        
         if (!useFull) {
             myDrawable=new LargeBitmapData(rfbconn, this, dx, dy, capacity);
             android.util.Log.i(TAG, "Using LargeBitmapData.");
-        } else {
+        } else if (!allocated) {
             try {
                 // TODO: Remove this if Android 4.2 receives a fix for a bug which causes it to stop drawing
                 // the bitmap in CompactBitmapData when under load (say playing a video over VNC).
                 if (!compact) {
                     myDrawable=new FullBufferBitmapData(rfbconn, this, capacity);
                     android.util.Log.i(TAG, "Using FullBufferBitmapData.");
+                } else if (!isRdp && !isSpice &&
+                           fbsize * DoubleBufferedBitmapData.CAPACITY_MULTIPLIER <= capacity*1024*1024) {
+                    // VNC marks the end of each update, so the decoder and the UI can work on separate buffers.
+                    myDrawable=new DoubleBufferedBitmapData(rfbconn, this);
+                    android.util.Log.i(TAG, "Using DoubleBufferedBitmapData.");
                 } else {
-                    myDrawable=new CompactBitmapData(rfbconn, this, isSpice);
+                    CompactBitmapData compactData = new CompactBitmapData(rfbconn, this, isSpice);
+                    // VNC draws through the bitmap data, so its changes can be uploaded once per update.
+                    compactData.setDeferUploads(!isRdp && !isSpice);
+                    myDrawable=compactData;
                     android.util.Log.i(TAG, "Using CompactBufferBitmapData.");
                 }
             } catch (Throwable e) { // If despite our efforts we fail to allocate memory, use LBBM.
@@ -743,9 +846,77 @@ public class RemoteCanvas extends ImageView implements UIEventListener, EventLis
     
     
     /**
-     * Requests an update of the entire remote desktop.
+     * Requests an update of the entire remote desktop. When only a small part of it is visible, that part
+     * is requested first, and the rest with a later request.
      */
     public void writeFullUpdateRequest (boolean incremental) {
+        synchronized (updateRequestLock) {
+            if (!findViewportRequest()) {
+                fullRefreshPending = false;
+                writeWholeUpdateRequest(incremental);
+            } else if (!incremental) {
+                // Refresh what is in view first, and everything else once that has arrived.
+                fullRefreshPending = true;
+                writeViewportUpdateRequest(false);
+            } else if (fullRefreshPending) {
+                fullRefreshPending = false;
+                writeWholeUpdateRequest(false);
+            } else if (SystemClock.uptimeMillis() - lastBackgroundRequest >= BACKGROUND_REQUEST_MILLIS) {
+                writeWholeUpdateRequest(true);
+            } else {
+                writeViewportUpdateRequest(true);
+            }
+        }
+    }
+    
+    
+    /**
+     * Sends the request for the whole desktop which is due after a refresh of just the visible part,
+     * if there is one. Used once the server takes over deciding when to send updates, since then
+     * writeFullUpdateRequest() is not called after each update any more.
+     */
+    public void writePendingUpdateRequest () {
+        synchronized (updateRequestLock) {
+            if (fullRefreshPending) {
+                fullRefreshPending = false;
+                writeWholeUpdateRequest(false);
+            }
+        }
+    }
+    
+    
+    /**
+     * Works out the visible part of the desktop into viewportRequest.
+     * @return whether it is small enough to be worth requesting on its own.
+     */
+    private boolean findViewportRequest() {
+        // LargeBitmapData already limits requests to the part of the desktop it holds.
+        if (!useFull || isRdp || isSpice)
+            return false;
+        int fbWidth  = rfbconn.framebufferWidth();
+        int fbHeight = rfbconn.framebufferHeight();
+        viewportRequest.set(absoluteXPosition, absoluteYPosition,
+                            absoluteXPosition + getVisibleWidth(), absoluteYPosition + getVisibleHeight());
+        if (!viewportRequest.intersect(0, 0, fbWidth, fbHeight))
+            return false;
+        return (float)viewportRequest.width() * viewportRequest.height() <= MAX_VIEWPORT_FRACTION * fbWidth * fbHeight;
+    }
+    
+    
+    private void writeViewportUpdateRequest (boolean incremental) {
+        Rect r = viewportRequest;
+        rfbconn.writeFramebufferUpdateRequest(r.left, r.top, r.width(), r.height(), incremental);
+        if (!viewportRequestOutstanding) {
+            viewportRequestOutstanding = true;
+            handler.removeCallbacks(backgroundRequest);
+            handler.postDelayed(backgroundRequest, BACKGROUND_REQUEST_MILLIS);
+        }
+    }
+    
+    
+    private void writeWholeUpdateRequest (boolean incremental) {
+        viewportRequestOutstanding = false;
+        lastBackgroundRequest = SystemClock.uptimeMillis();
         myDrawable.prepareFullUpdateRequest(incremental);
         rfbconn.writeFramebufferUpdateRequest(myDrawable.getXoffset(), myDrawable.getYoffset(),
                                               myDrawable.bmWidth(),    myDrawable.bmHeight(), incremental);
@@ -1037,6 +1208,8 @@ public class RemoteCanvas extends ImageView implements UIEventListener, EventLis
      * Causes a redraw of the myDrawable to happen at the indicated coordinates.
      */
     public void reDraw(int x, int y, int w, int h) {
+        if (sessionMetrics != null)
+            sessionMetrics.addInvalidation();
         float scale = getZoomFactor();
         float shiftedX = x-shiftX;
         float shiftedY = y-shiftY;
@@ -1051,6 +1224,8 @@ public class RemoteCanvas extends ImageView implements UIEventListener, EventLis
      * Causes a redraw of the myDrawable to happen at the indicated coordinates.
      */
     public void reDraw(float x, float y, float w, float h) {
+        if (sessionMetrics != null)
+            sessionMetrics.addInvalidation();
         float scale = getZoomFactor();
         float shiftedX = x-shiftX;
         float shiftedY = y-shiftY;
@@ -1089,6 +1264,75 @@ public class RemoteCanvas extends ImageView implements UIEventListener, EventLis
     }
     
     
+    /**
+     * Shows or hides performance figures of the VNC session over the desktop, and logs them all.
+     * @return true if the figures are now shown.
+     */
+    public boolean togglePerformanceOverlay() {
+        if (sessionMetrics == null)
+            return false;
+        Log.i(TAG, "Session metrics:\n" + sessionMetrics.snapshot());
+        showMetrics = !showMetrics;
+        sessionMetrics.setDetailedTiming(showMetrics);
+        if (showMetrics)
+            handler.post(metricsRefresher);
+        else
+            invalidate();
+        return showMetrics;
+    }
+    
+    
+    /**
+     * Redraws the performance figures once a second while they are shown.
+     */
+    private Runnable metricsRefresher = new Runnable() {
+        public void run() {
+            if (!showMetrics)
+                return;
+            invalidate(getScrollX() + metricsRect.left, getScrollY() + metricsRect.top,
+                       getScrollX() + metricsRect.right, getScrollY() + metricsRect.bottom);
+            handler.postDelayed(this, 1000);
+        }
+    };
+    
+    
+    /**
+     * Draws the performance figures in the top left corner of the view.
+     */
+    private void drawMetrics(Canvas canvas) {
+        if (metricsPaint == null) {
+            metricsPaint = new Paint();
+            metricsPaint.setAntiAlias(true);
+            metricsPaint.setColor(Color.WHITE);
+            metricsPaint.setTextSize(12 * displayDensity);
+            metricsBackground = new Paint();
+            metricsBackground.setColor(0xA0000000);
+        }
+        
+        String[] lines = sessionMetrics.overlayLines();
+        float lineHeight = metricsPaint.getFontSpacing();
+        int pad = (int)(4 * displayDensity);
+        float width = 0;
+        for (String line : lines)
+            width = Math.max(width, metricsPaint.measureText(line));
+        metricsRect.set(0, 0, (int)width + 2 * pad, (int)(lines.length * lineHeight) + 2 * pad);
+        
+        int x = getScrollX();
+        int y = getScrollY();
+        canvas.drawRect(x, y, x + metricsRect.right, y + metricsRect.bottom, metricsBackground);
+        for (int i = 0; i < lines.length; i++)
+            canvas.drawText(lines[i], x + pad, y + pad + (i + 1) * lineHeight - metricsPaint.descent(), metricsPaint);
+    }
+    
+    
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (showMetrics && sessionMetrics != null)
+            drawMetrics(canvas);
+    }
+    
+    
     /**
      * Invalidates (to redraw) the location of the remote pointer.
      */
@@ -1213,8 +1457,14 @@ public class RemoteCanvas extends ImageView implements UIEventListener, EventLis
         return (decoder.getColorModel() != null) && decoder.getColorModel().equals(cm);
     }
     
-    public void setColorModel(COLORMODEL cm) {
+    /**
+     * @return false if the color model cannot be changed, because the session is being recorded.
+     */
+    public boolean setColorModel(COLORMODEL cm) {
+        if (rfb != null && rfb.isRecording())
+            return false;
         decoder.setColorModel(cm);
+        return true;
     }
     
     public boolean getMouseFollowPan() {
@@ -1067,6 +1067,12 @@ public class RemoteCanvasActivity extends AppCompatActivity implements OnKeyList
         case R.id.itemInfo:
             canvas.showConnectionInfo();
             return true;
+        case R.id.itemPerformanceOverlay:
+            if (canvas.togglePerformanceOverlay())
+                item.setTitle(R.string.performance_overlay_disable);
+            else
+                item.setTitle(R.string.performance_overlay_enable);
+            return true;
         case R.id.itemSpecialKeys:
             showDialog(R.layout.metakey);
             return true;
@@ -1322,7 +1328,10 @@ public class RemoteCanvasActivity extends AppCompatActivity implements OnKeyList
             public void onItemClick(AdapterView<?> arg0, View arg1, int arg2, long arg3) {
                 dialog.dismiss();
                 COLORMODEL cm = COLORMODEL.values()[arg2];
-                canvas.setColorModel(cm);
+                if (!canvas.setColorModel(cm)) {
+                    Toast.makeText(RemoteCanvasActivity.this, R.string.info_color_model_recording, Toast.LENGTH_SHORT).show();
+                    return;
+                }
                 connection.setColorModel(cm.nameString());
                 connection.save(database.getWritableDatabase());
                 database.close();
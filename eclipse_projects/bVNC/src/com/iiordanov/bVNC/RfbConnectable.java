@@ -33,6 +33,7 @@ public interface RfbConnectable {
     String getEncoding ();
     void writePointerEvent(int x, int y, int metaState, int pointerMask);
     void writeKeyEvent(int key, int metaState, boolean down);
+    void writeKeySyms(int[] keysyms, int count, int metaState);
     void writeSetPixelFormat(int bitsPerPixel, int depth, boolean bigEndian,
                boolean trueColour, int redMax, int greenMax, int blueMax,
                int redShift, int greenShift, int blueShift, boolean fGreyScale);
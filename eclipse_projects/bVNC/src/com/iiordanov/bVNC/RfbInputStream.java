@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffers the stream coming from the server for the many small reads of message and
+ * rectangle headers, while letting bulk reads of rectangle data go straight from the
+ * socket into the decoder's buffers.
+ * <p>
+ * BufferedInputStream only bypasses its buffer for reads at least as large as the buffer
+ * itself, so the remainder of every large rectangle was still copied through it. Here,
+ * once the buffered bytes are used up, any read of more than DIRECT_READ_MIN bytes goes
+ * to the socket directly.
+ * </p>
+ * <p>
+ * While timing is on, the time spent waiting on the socket is measured here, so that the
+ * bandwidth estimate reflects the link even when another thread decodes what was read.
+ * </p>
+ */
+class RfbInputStream extends InputStream {
+    static final int BUFFER_SIZE = 8192;
+
+    // Reads at least this large bypass the buffer once it is empty.
+    static final int DIRECT_READ_MIN = 1024;
+
+    private InputStream in;
+    private SessionMetrics metrics;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int end = 0;
+
+    // Measuring network throughput.
+    private volatile boolean timing = false;
+    private long timeWaitedIn100us = 5;
+    private long timedKbits = 0;
+
+    /**
+     * @param metrics Where to count the bytes received.
+     */
+    RfbInputStream(InputStream in, SessionMetrics metrics) {
+        this.in = in;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Refills the empty buffer with whatever the socket has, waiting for at least one byte.
+     * @return false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        pos = 0;
+        end = 0;
+        int n = timedRead(buf, 0, BUFFER_SIZE);
+        if (n <= 0)
+            return false;
+        end = n;
+        metrics.addBytesReceived(n);
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == end && !fill())
+            return -1;
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (pos == end) {
+            if (len >= DIRECT_READ_MIN) {
+                int n = timedRead(b, off, len);
+                if (n > 0)
+                    metrics.addBytesReceived(n);
+                return n;
+            }
+            if (!fill())
+                return -1;
+        }
+        int n = Math.min(len, end - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Reads from the socket, adding the time waited to the throughput measurement if timing.
+     */
+    private int timedRead(byte[] b, int off, int len) throws IOException {
+        if (!timing)
+            return in.read(b, off, len);
+
+        long before = System.nanoTime();
+        int n = in.read(b, off, len);
+        if (n > 0)
+            addTimed(n, System.nanoTime() - before);
+        return n;
+    }
+
+    private synchronized void addTimed(int len, long nanos) {
+        long newTimeWaited = nanos / 100000;
+        int newKbits = len * 8 / 1000;
+
+        // limit rate to between 10kbit/s and 40Mbit/s
+
+        if (newTimeWaited > newKbits*1000) newTimeWaited = newKbits*1000;
+        if (newTimeWaited < newKbits/4)    newTimeWaited = newKbits/4;
+
+        timeWaitedIn100us += newTimeWaited;
+        timedKbits += newKbits;
+    }
+
+    synchronized void startTiming() {
+        timing = true;
+
+        // Carry over up to 1s worth of previous rate for smoothing.
+
+        if (timeWaitedIn100us > 10000) {
+            timedKbits = timedKbits * 10000 / timeWaitedIn100us;
+            timeWaitedIn100us = 10000;
+        }
+    }
+
+    synchronized void stopTiming() {
+        timing = false;
+        if (timeWaitedIn100us < timedKbits/2)
+            timeWaitedIn100us = timedKbits/2; // upper limit 20Mbit/s
+    }
+
+    synchronized long kbitsPerSecond() {
+        return timedKbits * 10000 / timeWaitedIn100us;
+    }
+
+    synchronized long timeWaited() {
+        return timeWaitedIn100us;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+        if (pos == end) {
+            long skipped = in.skip(n);
+            metrics.addBytesReceived((int) skipped);
+            return skipped;
+        }
+        int skipped = (int) Math.min(n, end - pos);
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (end - pos) + in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
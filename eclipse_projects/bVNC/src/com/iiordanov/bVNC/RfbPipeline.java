@@ -0,0 +1,470 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.util.Log;
+
+/**
+ * Two-stage receive pipeline for the RFB protocol.
+ * <p>
+ * A reader thread pulls server messages off the socket, parses just enough of each
+ * FramebufferUpdate rectangle to know where it ends, and copies header plus payload
+ * into a bounded ring of pooled byte buffers. The decoding thread reads the very same
+ * byte stream back through this InputStream, so RfbProto.processProtocol() and the
+ * Decoder work unchanged while network receive and pixel decoding overlap.
+ * </p>
+ * <p>
+ * When all pooled buffers are in flight the reader blocks, which leaves the remaining
+ * data in the socket and lets TCP flow control throttle the server as before.
+ * </p>
+ */
+class RfbPipeline extends InputStream implements Runnable {
+    private final static String TAG = "RfbPipeline";
+
+    // Number and size of the pooled buffers making up the ring.
+    static final int CHUNK_COUNT = 16;
+    static final int CHUNK_SIZE  = 65536;
+
+    /**
+     * A pooled buffer holding a run of framed protocol bytes.
+     */
+    static class Chunk {
+        byte[] data;
+        int len;
+        int pos;
+        IOException error;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+
+        void clear() {
+            len = 0;
+            pos = 0;
+            error = null;
+        }
+    }
+
+    private RfbProto rfb;
+    private DataInputStream in;
+    private Thread readerThread;
+    private volatile boolean running = false;
+
+    // Buffers ready to be filled by the reader, and framed buffers ready for decoding.
+    private BlockingQueue<Chunk> freeChunks   = new ArrayBlockingQueue<Chunk>(CHUNK_COUNT + 1);
+    private BlockingQueue<Chunk> framedChunks = new ArrayBlockingQueue<Chunk>(CHUNK_COUNT + 1);
+
+    // Owned by the reader thread.
+    private Chunk filling;
+    private byte[] scratch = new byte[4];
+    private byte[] fenceData = new byte[255];
+
+    // Owned by the decoding thread.
+    private Chunk draining;
+    private byte[] single = new byte[1];
+
+    /**
+     * @param rfb The protocol object, consulted for the current pixel format.
+     * @param in Stream connected to the socket.
+     */
+    RfbPipeline(RfbProto rfb, DataInputStream in) {
+        this.rfb = rfb;
+        this.in = in;
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            freeChunks.add(new Chunk(CHUNK_SIZE));
+        }
+    }
+
+    void start() {
+        running = true;
+        readerThread = new Thread(this, TAG);
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (readerThread != null)
+            readerThread.interrupt();
+    }
+
+    //
+    // Reader side.
+    //
+
+    @Override
+    public void run() {
+        try {
+            filling = freeChunks.take();
+            filling.clear();
+            while (running) {
+                if (!frameServerMessage())
+                    break;
+            }
+        } catch (InterruptedException e) {
+            // We were stopped, nothing to hand over.
+            return;
+        } catch (IOException e) {
+            if (running)
+                Log.i(TAG, "Reader stopped: " + e.getMessage());
+            handOverError(e);
+            return;
+        }
+        handOverError(new IOException("RFB pipeline reader stopped"));
+    }
+
+    /**
+     * Frames one complete server-to-client message.
+     * @return false if the reader cannot continue framing the stream.
+     */
+    private boolean frameServerMessage() throws IOException, InterruptedException {
+        int msgType = copyU8();
+        switch (msgType) {
+        case RfbProto.FramebufferUpdate:
+            copyU8();
+            int nRects = copyU16();
+            handOver();
+            // Time the socket while the update is received, as the decoding thread does when not pipelined.
+            rfb.startTiming();
+            for (int i = 0; i < nRects; i++) {
+                // Rectangle position is of no interest here.
+                copy(4);
+                int w = copyU16();
+                int h = copyU16();
+                int encoding = copyS32();
+                boolean last = frameRect(w, h, encoding);
+                // Hand every whole rectangle over to the decoder as soon as it is framed.
+                handOver();
+                if (last)
+                    break;
+            }
+            rfb.stopTiming();
+            return true;
+        case RfbProto.SetColourMapEntries:
+            copy(3);
+            copy(copyU16() * 6);
+            handOver();
+            return true;
+        case RfbProto.Bell:
+            handOver();
+            return true;
+        case RfbProto.ServerCutText:
+            copy(3);
+            copy(copyS32());
+            handOver();
+            return true;
+        case RfbProto.TextChat:
+            copy(3);
+            int len = copyS32();
+            if (len > 0)
+                copy(len);
+            handOver();
+            return true;
+        case RfbProto.EndOfContinuousUpdates:
+            handOver();
+            return true;
+        case RfbProto.ServerFence:
+            // Padding and flags, then the payload length and payload.
+            copy(3);
+            int flags = copyS32();
+            int fenceLength = copyU8();
+            in.readFully(fenceData, 0, fenceLength);
+            append(fenceData, fenceLength);
+            handOver();
+            // Rectangles following the answer to a fence sent with a SetPixelFormat are in the
+            // new pixel format. This thread gets there before the decoding thread does.
+            if ((flags & RfbProto.FenceFlagRequest) == 0 && RfbProto.isPixelFormatFence(fenceData, fenceLength))
+                rfb.usePixelFormat();
+            return true;
+        default:
+            // Let the decoding thread report the unknown message type.
+            handOver();
+            return false;
+        }
+    }
+
+    /**
+     * Frames the payload of one FramebufferUpdate rectangle.
+     * @return true if no further rectangles of this update should be read.
+     */
+    private boolean frameRect(int w, int h, int encoding) throws IOException, InterruptedException {
+        int bpp = rfb.bytesPerPixel();
+        switch (encoding) {
+        case RfbProto.EncodingRaw:
+            copy(w * h * bpp);
+            break;
+        case RfbProto.EncodingCopyRect:
+            copy(4);
+            break;
+        case RfbProto.EncodingRRE:
+            copy((bpp + 8) * copyRRESubrectCount(bpp));
+            break;
+        case RfbProto.EncodingCoRRE:
+            copy((bpp + 4) * copyRRESubrectCount(bpp));
+            break;
+        case RfbProto.EncodingHextile:
+            frameHextile(w, h, bpp);
+            break;
+        case RfbProto.EncodingZlib:
+        case RfbProto.EncodingZRLE:
+            copy(copyS32());
+            break;
+        case RfbProto.EncodingTight:
+        case RfbProto.EncodingTightPng:
+            frameTight(w, h, bpp);
+            break;
+        case RfbProto.EncodingXCursor:
+        case RfbProto.EncodingRichCursor:
+            if (w * h != 0) {
+                int mask = ((w + 7) / 8) * h;
+                if (encoding == RfbProto.EncodingXCursor)
+                    copy(6 + mask * 2);
+                else
+                    copy(w * h * bpp + mask);
+            }
+            break;
+        case RfbProto.EncodingPointerPos:
+            break;
+        case RfbProto.EncodingLastRect:
+        case RfbProto.EncodingNewFBSize:
+            return true;
+        case RfbProto.EncodingClientRedirect:
+            copy(2);
+            copy(copyS32());
+            copy(copyS32());
+            // The decoding thread switches to a new socket, so there is nothing more to read here.
+            running = false;
+            return true;
+        default:
+            throw new IOException("Cannot frame RFB rectangle encoding " + encoding);
+        }
+        return false;
+    }
+
+    private void frameHextile(int w, int h, int bpp) throws IOException, InterruptedException {
+        for (int ty = 0; ty < h; ty += 16) {
+            int th = Math.min(h - ty, 16);
+            for (int tx = 0; tx < w; tx += 16) {
+                int tw = Math.min(w - tx, 16);
+                int subencoding = copyU8();
+                if ((subencoding & RfbProto.HextileRaw) != 0) {
+                    copy(tw * th * bpp);
+                    continue;
+                }
+                if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0)
+                    copy(bpp);
+                if ((subencoding & RfbProto.HextileForegroundSpecified) != 0)
+                    copy(bpp);
+                if ((subencoding & RfbProto.HextileAnySubrects) != 0) {
+                    int nSubrects = copyU8();
+                    if ((subencoding & RfbProto.HextileSubrectsColoured) != 0)
+                        copy(nSubrects * (2 + bpp));
+                    else
+                        copy(nSubrects * 2);
+                }
+            }
+        }
+    }
+
+    private void frameTight(int w, int h, int bpp) throws IOException, InterruptedException {
+        int comp_ctl = copyU8() >> 4;
+        // Tight sends true-colour pixels as three bytes.
+        int tpixel = (bpp == 1) ? 1 : 3;
+
+        if (comp_ctl == RfbProto.TightFill) {
+            copy(tpixel);
+            return;
+        }
+        if (comp_ctl == RfbProto.TightJpeg || comp_ctl == RfbProto.TightPng) {
+            copy(copyCompactLen());
+            return;
+        }
+
+        int numColors = 0;
+        int rowSize = w;
+        if ((comp_ctl & RfbProto.TightExplicitFilter) != 0) {
+            int filter_id = copyU8();
+            if (filter_id == RfbProto.TightFilterPalette) {
+                numColors = copyU8() + 1;
+                copy(numColors * tpixel);
+                if (numColors == 2)
+                    rowSize = (w + 7) / 8;
+            }
+        }
+        if (numColors == 0 && bpp == 4)
+            rowSize *= 3;
+
+        int dataSize = h * rowSize;
+        if (dataSize < RfbProto.TightMinToCompress)
+            copy(dataSize);
+        else
+            copy(copyCompactLen());
+    }
+
+    private int copyU8() throws IOException, InterruptedException {
+        in.readFully(scratch, 0, 1);
+        append(scratch, 1);
+        return scratch[0] & 0xff;
+    }
+
+    private int copyU16() throws IOException, InterruptedException {
+        in.readFully(scratch, 0, 2);
+        append(scratch, 2);
+        return (scratch[0] & 0xff) << 8 | (scratch[1] & 0xff);
+    }
+
+    private int copyS32() throws IOException, InterruptedException {
+        in.readFully(scratch, 0, 4);
+        append(scratch, 4);
+        return (scratch[0] & 0xff) << 24 | (scratch[1] & 0xff) << 16 | (scratch[2] & 0xff) << 8 | (scratch[3] & 0xff);
+    }
+
+    /**
+     * Copies an RRE/CoRRE header (subrectangle count and background pixel).
+     * @return The number of subrectangles that follow.
+     */
+    private int copyRRESubrectCount(int bpp) throws IOException, InterruptedException {
+        int n = copyS32();
+        copy(bpp);
+        return n;
+    }
+
+    /**
+     * Same as RfbProto.readCompactLen(), copying the bytes read.
+     */
+    private int copyCompactLen() throws IOException, InterruptedException {
+        int b = copyU8();
+        int len = b & 0x7F;
+        if ((b & 0x80) != 0) {
+            b = copyU8();
+            len |= (b & 0x7F) << 7;
+            if ((b & 0x80) != 0) {
+                b = copyU8();
+                len |= (b & 0xFF) << 14;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Copies len bytes straight from the socket into the ring.
+     */
+    private void copy(int len) throws IOException, InterruptedException {
+        while (len > 0) {
+            if (filling.len == filling.data.length)
+                handOver();
+            int n = Math.min(len, filling.data.length - filling.len);
+            in.readFully(filling.data, filling.len, n);
+            filling.len += n;
+            len -= n;
+        }
+    }
+
+    private void append(byte[] b, int len) throws InterruptedException {
+        if (filling.len + len > filling.data.length)
+            handOver();
+        System.arraycopy(b, 0, filling.data, filling.len, len);
+        filling.len += len;
+    }
+
+    /**
+     * Passes the buffer being filled to the decoding thread, waiting for a free one if necessary.
+     */
+    private void handOver() throws InterruptedException {
+        if (filling.len == 0)
+            return;
+        framedChunks.put(filling);
+        filling = freeChunks.take();
+        filling.clear();
+    }
+
+    /**
+     * Passes along whatever was read so far, followed by a marker which makes the decoding
+     * thread fail the same way a direct read from the socket would have.
+     */
+    private void handOverError(IOException e) {
+        Chunk marker = new Chunk(0);
+        marker.error = e;
+        try {
+            if (filling != null && filling.len != 0)
+                framedChunks.put(filling);
+            framedChunks.put(marker);
+        } catch (InterruptedException ie) { }
+        filling = null;
+    }
+
+    //
+    // Decoding side.
+    //
+
+    /**
+     * Makes sure there is a buffer with unread data, blocking until the reader provides one.
+     */
+    private void nextChunk() throws IOException {
+        if (draining != null) {
+            if (draining.pos < draining.len)
+                return;
+            if (draining.error == null) {
+                draining.clear();
+                freeChunks.offer(draining);
+            }
+            draining = null;
+        }
+        try {
+            draining = framedChunks.take();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for RFB data");
+        }
+        if (draining.error != null) {
+            // Leave the error in place so that subsequent reads fail too.
+            throw draining.error;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(single, 0, 1);
+        return (n < 0) ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        nextChunk();
+        int n = Math.min(len, draining.len - draining.pos);
+        System.arraycopy(draining.data, draining.pos, b, off, n);
+        draining.pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (draining == null || draining.error != null)
+            return 0;
+        return draining.len - draining.pos;
+    }
+}
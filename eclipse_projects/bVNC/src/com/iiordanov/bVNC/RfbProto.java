@@ -23,7 +23,6 @@
 
 package com.iiordanov.bVNC;
 
-import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -32,6 +31,7 @@ import java.net.Socket;
 
 import javax.net.ssl.SSLSocket;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.iiordanov.bVNC.input.RemoteKeyboard;
@@ -128,7 +128,9 @@ class RfbProto implements RfbConnectable {
     SetColourMapEntries = 1,
     Bell                = 2,
     ServerCutText       = 3,
-    TextChat            = 11;
+    TextChat            = 11,
+    EndOfContinuousUpdates = 150,
+    ServerFence         = 248;
 
   // Client-to-server messages
   final static int
@@ -138,7 +140,9 @@ class RfbProto implements RfbConnectable {
     FramebufferUpdateRequest = 3,
     KeyboardEvent            = 4,
     PointerEvent             = 5,
-    ClientCutText            = 6;
+    ClientCutText            = 6,
+    EnableContinuousUpdates  = 150,
+    ClientFence              = 248;
 
   // Supported encodings and pseudo-encodings
   final static int
@@ -150,6 +154,7 @@ class RfbProto implements RfbConnectable {
     EncodingZlib           = 6,
     EncodingTight          = 7,
     EncodingZRLE           = 16,
+    EncodingTightPng       = -260,
     EncodingCompressLevel0 = -256,
     EncodingQualityLevel0  = -32,
     EncodingXCursor        = -240,
@@ -157,7 +162,9 @@ class RfbProto implements RfbConnectable {
     EncodingPointerPos     = -232,
     EncodingLastRect       = -224,
     EncodingNewFBSize      = -223,
-    EncodingClientRedirect = -311;
+    EncodingClientRedirect = -311,
+    EncodingFence          = -312,
+    EncodingContinuousUpdates = -313;
   
   final static String
     SigEncodingRaw            = "RAW_____",
@@ -178,6 +185,17 @@ class RfbProto implements RfbConnectable {
 
   final static int MaxNormalEncoding = 255;
 
+  // Fence flags
+  final static int
+    FenceFlagBlockBefore = 1,
+    FenceFlagBlockAfter  = 2,
+    FenceFlagSyncNext    = 4,
+    FenceFlagRequest     = 0x80000000;
+  final static int MaxFenceLength = 64;
+
+  // Payload of the fence sent along with a SetPixelFormat, which tells its answer apart.
+  final static byte[] PixelFormatFence = { 'P', 'F' };
+
   // Contstants used in the Hextile decoder
   final static int
     HextileRaw                 = 1,
@@ -192,7 +210,8 @@ class RfbProto implements RfbConnectable {
     TightExplicitFilter = 0x04,
     TightFill           = 0x08,
     TightJpeg           = 0x09,
-    TightMaxSubencoding = 0x09,
+    TightPng            = 0x0A,
+    TightMaxSubencoding = 0x0A,
     TightFilterCopy     = 0x00,
     TightFilterPalette  = 0x01,
     TightFilterGradient = 0x02;
@@ -244,10 +263,8 @@ class RfbProto implements RfbConnectable {
   // playback.
   //int numUpdatesInSession;
 
-  // Measuring network throughput.
-  boolean timing;
-  long timeWaitedIn100us;
-  long timedKbits;
+  // Reads from the server, measuring network throughput.
+  private RfbInputStream rfbIn;
 
   // Protocol version and TightVNC-specific protocol options.
   int serverMajor, serverMinor;
@@ -275,6 +292,10 @@ class RfbProto implements RfbConnectable {
   
     // Handle for decoder object
     private Decoder decoder;
+
+    // Performance figures for this session, including time spent reading and decoding
+    // rectangles of each encoding
+    private SessionMetrics metrics = new SessionMetrics();
     
     // Suggests to the server whether the desktop should be shared or not
     private int shareDesktop = 1;
@@ -291,6 +312,60 @@ class RfbProto implements RfbConnectable {
     // Whether to only use a local cursor.
     private boolean useLocalCursor = false;
     
+    // Bytes per pixel of the pixel format being received, and of the one last requested from the server.
+    private volatile int bytesPerPixel = 4;
+    private int requestedBytesPerPixel = 4;
+    
+    // Whether to receive and decode on separate threads, and the receive pipeline if so.
+    private boolean pipelined = false;
+    private RfbPipeline pipeline = null;
+    
+    // Sends client messages on a separate thread once the normal protocol is entered.
+    private RfbWriter writer = null;
+    
+    // Pixel format being received and the one of the last SetPixelFormat message, as they appear in ServerInit.
+    private byte[] pixelFormat = new byte[16];
+    private byte[] requestedPixelFormat = new byte[16];
+    
+    // File to record the session to, and the recorder while recording.
+    private String sessionFile = null;
+    private SessionRecorder recorder = null;
+    
+    // Whether the server streams updates to us without waiting for FramebufferUpdateRequests,
+    // and whether we have asked it to stop doing so in order to change the pixel format.
+    private boolean continuousUpdatesActive = false;
+    private boolean continuousUpdatesStopping = false;
+    
+    // Adapts compression, JPEG quality and color depth to the measured bandwidth, if enabled.
+    private QualityController qualityController = null;
+    private COLORMODEL chosenColorModel = null;
+    private COLORMODEL reducedColorModel = null;
+    
+    // Whether the server answers fences, the time our last fence was sent if it is still
+    // unanswered, and the round trip time it took for the last one to be answered.
+    private boolean fencesSupported = false;
+    private long fenceSentAt = 0;
+    private long lastFenceAt = 0;
+    private volatile long roundTripMillis = -1;
+    
+    // When the oldest input event not yet followed by a framebuffer update was sent.
+    private volatile long inputSentAt = 0;
+    
+    // Pointer motion is sent at most pointerEventRate times a second, unlimited if 0. Motion which
+    // comes sooner is held back, and only the latest position is sent once the interval has passed.
+    // Changes to the buttons or modifiers are always sent at once.
+    private int pointerEventRate = 0;
+    private long pointerSentAt = 0;
+    private int sentPointerMask = 0;
+    private int sentPointerModifiers = 0;
+    private boolean pointerPending = false;
+    private int pendingPointerX, pendingPointerY, pendingPointerModifiers, pendingPointerMask;
+    private Runnable pointerFlusher = new Runnable() {
+        public void run() {
+            flushPointerEvent();
+        }
+    };
+    
   //
   // Constructor. Make TCP connection to RFB server.
   //
@@ -317,11 +392,36 @@ class RfbProto implements RfbConnectable {
       setParameters(decoder, canvas, host, port, sock, preferredEncoding, viewOnly, useLocalCursor);
   }
 
+  //
+  // Constructor. Play back a session recorded by SessionRecorder instead of connecting to a server.
+  // Messages to the server are discarded, and the recording is read as fast as it can be decoded.
+  //
+  RfbProto(Decoder decoder, RemoteCanvas canvas, String sessionFile, int preferredEncoding,
+           boolean useLocalCursor) throws Exception {
+      this.decoder = decoder;
+      decoder.setSessionMetrics(metrics);
+      this.canvas = canvas;
+      this.host = sessionFile;
+      this.preferredEncoding = preferredEncoding;
+      this.viewOnly = true;
+      this.useLocalCursor = useLocalCursor;
+      
+      setStreams(new SessionPlayer(sessionFile), new OutputStream() {
+          @Override
+          public void write(int b) {}
+      });
+      
+      readVersionMsg();
+      if (is.readInt() != SecTypeNone)
+          throw new Exception("Session recording " + sessionFile + " does not start with security type None");
+  }
+
   
   void setParameters(Decoder decoder, RemoteCanvas canvas,
                       String host, int port, Socket sock, int preferredEncoding,
                       boolean viewOnly, boolean useLocalCursor) throws Exception {
       this.decoder = decoder;
+      decoder.setSessionMetrics(metrics);
       this.viewOnly = viewOnly;
       this.canvas = canvas;
       this.host = host;
@@ -336,16 +436,15 @@ class RfbProto implements RfbConnectable {
       
       this.sock = sock;
       setStreams(sock.getInputStream(), sock.getOutputStream());
-
-      timing = false;
-      timeWaitedIn100us = 5;
-      timedKbits = 0;
   }
   
   public synchronized void closeSocket() {
       inNormalProtocol = false;
     try {
-      sock.close();
+      if (sock != null)
+        sock.close();
+      else
+        is.close();
       closed = true;
       Log.v(TAG, "RFB socket closed");
     } catch (Exception e) {
@@ -356,9 +455,24 @@ class RfbProto implements RfbConnectable {
   public void close() {
       inNormalProtocol = false;
       maintainConnection = false;
+      stopWriter();
       closeSocket();
   }
 
+  /**
+   * Sends the messages still queued to the server, waiting briefly for them, and stops the
+   * sender thread, so that they are not lost when the socket is closed.
+   */
+  private void stopWriter() {
+      RfbWriter w;
+      synchronized (this) {
+          w = writer;
+          writer = null;
+      }
+      if (w != null)
+          w.stop();
+  }
+
   synchronized boolean closed() {
     return closed;
   }
@@ -1190,6 +1304,24 @@ class RfbProto implements RfbConnectable {
   }
 
 
+  //
+  // Read a ServerFence message
+  //
+
+  int fenceFlags, fenceLength;
+  byte[] fenceData = new byte[MaxFenceLength];
+
+  void readFence() throws IOException {
+    byte[] pad = new byte[3];
+    readFully(pad);
+    fenceFlags = is.readInt();
+    fenceLength = is.readUnsignedByte();
+    if (fenceLength > MaxFenceLength)
+      throw new IOException("Fence payload of " + fenceLength + " bytes is too long");
+    readFully(fenceData, 0, fenceLength);
+  }
+
+
   //
   // Read an integer in compact representation (1..3 bytes).
   // Such format is used as a part of the Tight encoding.
@@ -1274,6 +1406,8 @@ class RfbProto implements RfbConnectable {
     b[16] = (byte) blueShift;
     b[17] = (byte) (fGreyScale ? 1 : 0); // sf@2005
 
+    this.requestedBytesPerPixel = bitsPerPixel / 8;
+    System.arraycopy(b, 4, requestedPixelFormat, 0, 16);
     try {
         os.write(b);
     } catch (IOException e) {
@@ -1336,22 +1470,64 @@ class RfbProto implements RfbConnectable {
 
 
   //
-  // Write a ClientCutText message
+  // Write an EnableContinuousUpdates message
   //
 
-  synchronized void writeClientCutText(String text, int length) throws IOException {
+  synchronized void writeEnableContinuousUpdates(boolean enable, int x, int y, int w, int h) throws IOException {
+    byte[] b = new byte[10];
+
+    b[0] = (byte) EnableContinuousUpdates;
+    b[1] = (byte) (enable ? 1 : 0);
+    b[2] = (byte) ((x >> 8) & 0xff);
+    b[3] = (byte) (x & 0xff);
+    b[4] = (byte) ((y >> 8) & 0xff);
+    b[5] = (byte) (y & 0xff);
+    b[6] = (byte) ((w >> 8) & 0xff);
+    b[7] = (byte) (w & 0xff);
+    b[8] = (byte) ((h >> 8) & 0xff);
+    b[9] = (byte) (h & 0xff);
+
+    os.write(b);
+  }
+
+
+  //
+  // Write a ClientFence message
+  //
+
+  synchronized void writeFence(int flags, int len, byte[] data) throws IOException {
+    byte[] b = new byte[9 + len];
+
+    b[0] = (byte) ClientFence;
+    b[4] = (byte) ((flags >> 24) & 0xff);
+    b[5] = (byte) ((flags >> 16) & 0xff);
+    b[6] = (byte) ((flags >> 8) & 0xff);
+    b[7] = (byte) (flags & 0xff);
+    b[8] = (byte) len;
+    System.arraycopy(data, 0, b, 9, len);
+
+    os.write(b);
+  }
+
+
+  //
+  // Write a ClientCutText message with text already encoded as ISO 8859-1
+  //
+
+  synchronized void writeClientCutText(byte[] bytes) throws IOException {
     if (viewOnly)
         return;
     
+    int length = bytes.length;
     byte[] b = new byte[8 + length];
 
     b[0] = (byte) ClientCutText;
-    b[4] = (byte) ((text.length() >> 24) & 0xff);
-    b[5] = (byte) ((text.length() >> 16) & 0xff);
-    b[6] = (byte) ((text.length() >> 8) & 0xff);
-    b[7] = (byte) (text.length() & 0xff);
+    b[4] = (byte) ((length >> 24) & 0xff);
+    b[5] = (byte) ((length >> 16) & 0xff);
+    b[6] = (byte) ((length >> 8) & 0xff);
+    b[7] = (byte) (length & 0xff);
 
-    System.arraycopy(text.getBytes(), 0, b, 8, length);
+    System.arraycopy(bytes, 0, b, 8, length);
 
     os.write(b);
   }
@@ -1382,6 +1558,29 @@ class RfbProto implements RfbConnectable {
         if (viewOnly)
             return;
         
+        long now = SystemClock.uptimeMillis();
+        if (pointerEventRate > 0 && pointerMask == sentPointerMask && modifiers == sentPointerModifiers) {
+            long wait = pointerSentAt + 1000 / pointerEventRate - now;
+            if (wait > 0) {
+                if (!pointerPending)
+                    canvas.handler.postDelayed(pointerFlusher, wait);
+                pointerPending          = true;
+                pendingPointerX         = x;
+                pendingPointerY         = y;
+                pendingPointerModifiers = modifiers;
+                pendingPointerMask      = pointerMask;
+                return;
+            }
+        }
+        // Anything held back is superseded by this event.
+        if (pointerPending) {
+            canvas.handler.removeCallbacks(pointerFlusher);
+            pointerPending = false;
+        }
+        pointerSentAt = now;
+        sentPointerMask = pointerMask;
+        sentPointerModifiers = modifiers;
+        
         eventBufLen = 0;
         writeModifierKeyEvents(modifiers);
 
@@ -1402,12 +1601,25 @@ class RfbProto implements RfbConnectable {
 
         try {
             os.write(eventBuf, 0, eventBufLen);
+            if (inputSentAt == 0)
+                inputSentAt = System.nanoTime();
         } catch (IOException e) {
             Log.e (TAG, "Failed to write pointer event to VNC server.");
             e.printStackTrace();
         }      
   }
 
+  /**
+   * Sends the pointer motion held back by writePointerEvent(), if any.
+   */
+  synchronized void flushPointerEvent() {
+      if (!pointerPending)
+          return;
+      // Sending with the interval reset cannot be held back again.
+      pointerSentAt = 0;
+      writePointerEvent(pendingPointerX, pendingPointerY, pendingPointerModifiers, pendingPointerMask);
+  }
+
   void writeCtrlAltDel() throws IOException {
       final int DELETE = 0xffff;
       final int CTRLALT = RemoteKeyboard.CTRL_MASK | RemoteKeyboard.ALT_MASK;
@@ -1440,6 +1652,8 @@ class RfbProto implements RfbConnectable {
     if (viewOnly)
         return;
     
+    // Keep the key after any pointer motion which came before it.
+    flushPointerEvent();
     eventBufLen = 0;
     if (down)
         writeModifierKeyEvents(metaState);
@@ -1453,6 +1667,8 @@ class RfbProto implements RfbConnectable {
 
     try {
         os.write(eventBuf, 0, eventBufLen);
+        if (inputSentAt == 0)
+            inputSentAt = System.nanoTime();
     } catch (IOException e) {
         Log.e(TAG, "Failed to write key event to VNC server.");
         e.printStackTrace();
@@ -1466,6 +1682,39 @@ class RfbProto implements RfbConnectable {
   // Add a raw key event with the given X keysym to eventBuf.
   //
 
+  /**
+   * Types a sequence of keysyms, pressing and releasing each in turn, with the modifiers in
+   * metaState held down once around the whole sequence rather than around every key.
+   * Everything goes to the server in a single write.
+   */
+  public synchronized void writeKeySyms(int[] keysyms, int count, int metaState) {
+    if (viewOnly || count <= 0)
+        return;
+    
+    flushPointerEvent();
+    // Gather the events in a buffer big enough for all of them.
+    byte[] modifierBuf = eventBuf;
+    eventBuf = new byte[count * 16 + 2 * modifierBuf.length];
+    eventBufLen = 0;
+    writeModifierKeyEvents(metaState);
+    for (int i = 0; i < count; i++) {
+        writeKeyEvent(keysyms[i], true);
+        writeKeyEvent(keysyms[i], false);
+    }
+    writeModifierKeyEvents(0);
+
+    try {
+        os.write(eventBuf, 0, eventBufLen);
+        if (inputSentAt == 0)
+            inputSentAt = System.nanoTime();
+    } catch (IOException e) {
+        Log.e(TAG, "Failed to write key events to VNC server.");
+        e.printStackTrace();
+    } finally {
+        eventBuf = modifierBuf;
+    }
+  }
+
   private void writeKeyEvent(int keysym, boolean down) {
     if (viewOnly)
         return;
@@ -1545,29 +1794,23 @@ class RfbProto implements RfbConnectable {
   //
 
 
-  public void startTiming() {
-    timing = true;
-
-    // Carry over up to 1s worth of previous rate for smoothing.
+  // Throughput is timed while an update is received. When pipelined, that is up
+  // to the pipeline's reader thread rather than the one decoding the update.
 
-    if (timeWaitedIn100us > 10000) {
-      timedKbits = timedKbits * 10000 / timeWaitedIn100us;
-      timeWaitedIn100us = 10000;
-    }
+  public void startTiming() {
+    rfbIn.startTiming();
   }
 
   public void stopTiming() {
-    timing = false; 
-    if (timeWaitedIn100us < timedKbits/2)
-      timeWaitedIn100us = timedKbits/2; // upper limit 20Mbit/s
+    rfbIn.stopTiming();
   }
 
   public long kbitsPerSecond() {
-    return timedKbits * 10000 / timeWaitedIn100us;
+    return rfbIn.kbitsPerSecond();
   }
 
   public long timeWaited() {
-    return timeWaitedIn100us;
+    return rfbIn.timeWaited();
   }
 
   public void readFully(byte b[]) throws IOException {
@@ -1575,32 +1818,7 @@ class RfbProto implements RfbConnectable {
   }
 
   public void readFully(byte b[], int off, int len) throws IOException {
-      // TODO: Try reenabling timing and set color according to bandwidth
-    /*
-    long before = 0;
-    timing = false; // for test
-    
-    if (timing)
-      before = System.currentTimeMillis();
-     */
-
     is.readFully(b, off, len);
-
-    /*
-    if (timing) {
-      long after = System.currentTimeMillis();
-      long newTimeWaited = (after - before) * 10;
-      int newKbits = len * 8 / 1000;
-
-      // limit rate to between 10kbit/s and 40Mbit/s
-
-      if (newTimeWaited > newKbits*1000) newTimeWaited = newKbits*1000;
-      if (newTimeWaited < newKbits/4)    newTimeWaited = newKbits/4;
-
-      timeWaitedIn100us += newTimeWaited;
-      timedKbits += newKbits;
-    }
-    */
   }
 
   final int available() throws IOException {
@@ -1640,10 +1858,87 @@ class RfbProto implements RfbConnectable {
     return utf8string;
   }
   
+  /**
+   * @return Per-encoding decoding statistics for this connection.
+   */
+  DecoderStats getDecoderStats() {
+    return metrics.decoderStats;
+  }
+
+  /**
+   * @return Performance figures for this session.
+   */
+  SessionMetrics getSessionMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return The number of bytes per pixel the server is sending.
+   */
+  int bytesPerPixel() {
+    return bytesPerPixel;
+  }
+
+  /**
+   * Takes the pixel format last asked of the server as the one it is sending from now on.
+   */
+  synchronized void usePixelFormat() {
+    bytesPerPixel = requestedBytesPerPixel;
+    System.arraycopy(requestedPixelFormat, 0, pixelFormat, 0, 16);
+  }
+
+  /**
+   * Records everything the server sends from now on into the given FBS file,
+   * starting when processProtocol() is entered.
+   */
+  void setSessionFile(String sessionFile) {
+    this.sessionFile = sessionFile;
+  }
+
+  /**
+   * @return true if the session is recorded. The recording holds a single ServerInit, so the
+   * pixel format cannot change while recording.
+   */
+  boolean isRecording() {
+    return sessionFile != null;
+  }
+
+  /**
+   * Enables adjusting the compression level, JPEG quality and color depth to the bandwidth
+   * measured during the session.
+   */
+  void setAdaptiveQuality(boolean adaptive) {
+    qualityController = adaptive ? new QualityController() : null;
+  }
+
+  /**
+   * Limits how many times a second pointer motion is sent, 0 or less for no limit. Button and
+   * modifier changes are not limited.
+   */
+  synchronized void setPointerEventRate(int pointerEventRate) {
+    this.pointerEventRate = Math.max(pointerEventRate, 0);
+  }
+
+  /**
+   * @return The last round trip time measured with a fence, or -1 if none was measured.
+   */
+  long roundTripMillis() {
+    return roundTripMillis;
+  }
+
+  /**
+   * Enables receiving server messages on a separate thread while the current
+   * thread decodes them. Takes effect the next time processProtocol() is entered.
+   */
+  void setPipelined(boolean pipelined) {
+    this.pipelined = pipelined;
+  }
+
   public void setStreams(InputStream is_, OutputStream os_) {
     // After much testing, 8192 does seem like the best compromize between
-    // responsiveness and throughput.
-    is = new DataInputStream(new BufferedInputStream(is_, 8192));
+    // responsiveness and throughput. Bulk reads bypass the buffer.
+    rfbIn = new RfbInputStream(is_, metrics);
+    is = new DataInputStream(rfbIn);
     os = os_;
   }
 
@@ -1739,7 +2034,8 @@ class RfbProto implements RfbConnectable {
     @Override
     public void writeClientCutText(String text) {
         try {
-            writeClientCutText(text, text.length());
+            // The protocol defines the text as Latin-1, so other characters are sent as '?'.
+            writeClientCutText(text.getBytes("8859_1"));
         } catch (IOException e) {
             Log.e(TAG, "Could not write text to VNC server clipboard.");
             e.printStackTrace();
@@ -1785,6 +2081,7 @@ class RfbProto implements RfbConnectable {
 
         encodings[nEncodings++] = preferredEncoding;
         encodings[nEncodings++] = RfbProto.EncodingTight;
+        encodings[nEncodings++] = RfbProto.EncodingTightPng;
         encodings[nEncodings++] = RfbProto.EncodingZRLE;
         encodings[nEncodings++] = RfbProto.EncodingHextile;
         encodings[nEncodings++] = RfbProto.EncodingZlib;
@@ -1804,6 +2101,8 @@ class RfbProto implements RfbConnectable {
         encodings[nEncodings++] = RfbProto.EncodingPointerPos;
         encodings[nEncodings++] = RfbProto.EncodingLastRect;
         encodings[nEncodings++] = RfbProto.EncodingNewFBSize;
+        encodings[nEncodings++] = RfbProto.EncodingFence;
+        encodings[nEncodings++] = RfbProto.EncodingContinuousUpdates;
         // TODO: Disabling ClientRedirect encoding for now because of
         // it being reserved for CursorWithAlpha by RealVNC and for
         // ClientRedirect by IANA. This can be reenabled once the
@@ -1839,6 +2138,38 @@ class RfbProto implements RfbConnectable {
         int msgType = 0;
 
         try {
+            if (sessionFile != null) {
+                // Record what is read by the protocol, behind a ServerInit describing the current format.
+                try {
+                    recorder = new SessionRecorder(is, sessionFile);
+                    recorder.writeServerInit(framebufferWidth, framebufferHeight, pixelFormat, desktopName);
+                    is = new DataInputStream(recorder);
+                    Log.i(TAG, "Recording session to " + sessionFile);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not record session to " + sessionFile);
+                    e.printStackTrace();
+                }
+            }
+            
+            if (pipelined) {
+                // From here on, the socket is read by the pipeline thread and we decode
+                // what it has framed through the very same DataInputStream interface.
+                pipeline = new RfbPipeline(this, is);
+                is = new DataInputStream(pipeline);
+                pipeline.start();
+                Log.i(TAG, "Using pipelined receive and decode");
+            }
+            
+            if (sock != null) {
+                // From here on, messages to the server are written by the sender thread, so that
+                // input from the UI thread never waits on the socket.
+                synchronized (this) {
+                    writer = new RfbWriter(os);
+                    writer.start();
+                    os = writer;
+                }
+            }
+            
             setEncodings();
             canvas.writeFullUpdateRequest(false);
 
@@ -1859,66 +2190,79 @@ class RfbProto implements RfbConnectable {
                 switch (msgType) {
                 case RfbProto.FramebufferUpdate:
                     readFramebufferUpdate();
+                    if (pipeline == null)
+                        startTiming();
+                    metrics.addUpdate();
+                    long sentAt = inputSentAt;
+                    if (sentAt != 0) {
+                        metrics.addInputRoundTrip(System.nanoTime() - sentAt);
+                        inputSentAt = 0;
+                    }
 
                     for (int i = 0; i < updateNRects; i++) {
                         readFramebufferUpdateRectHdr();
+                        long rectStart = System.nanoTime();
 
                         switch (updateRectEncoding) {
-                        case RfbProto.EncodingTight:
-                            decoder.handleTightRect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                            break;
                         case RfbProto.EncodingPointerPos:
                             canvas.softCursorMove(updateRectX, updateRectY);
                             break;
-                        case RfbProto.EncodingXCursor:
-                        case RfbProto.EncodingRichCursor:
-                            decoder.handleCursorShapeUpdate(this, updateRectEncoding, updateRectX, updateRectY,
-                                                            updateRectW, updateRectH);
-                            break;
                         case RfbProto.EncodingLastRect:
                             exitforloop = true;
                             break;
-                        case RfbProto.EncodingCopyRect:
-                            decoder.handleCopyRect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                            break;
                         case RfbProto.EncodingNewFBSize:
                             setFramebufferSize(updateRectW, updateRectH);
                             canvas.updateFBSize();
+                            if (continuousUpdatesActive && !continuousUpdatesStopping)
+                                writeEnableContinuousUpdates(true, 0, 0, framebufferWidth, framebufferHeight);
                             exitforloop = true;
                             break;
-                        case RfbProto.EncodingRaw:
-                            decoder.handleRawRect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                            break;
-                        case RfbProto.EncodingRRE:
-                            decoder.handleRRERect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                            break;
-                        case RfbProto.EncodingCoRRE:
-                            decoder.handleCoRRERect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                            break;
-                        case RfbProto.EncodingHextile:
-                            decoder.handleHextileRect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                            break;
-                        case RfbProto.EncodingZRLE:
-                            decoder.handleZRLERect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                            break;
-                        case RfbProto.EncodingZlib:
-                            decoder.handleZlibRect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                            break;
                         case RfbProto.EncodingClientRedirect:
                             readClientRedirect(updateRectX, updateRectY, updateRectW, updateRectH);
                             break;
                         default:
-                            Log.e(TAG, "Unknown RFB rectangle encoding " + updateRectEncoding +
-                                        " (0x" + Integer.toHexString(updateRectEncoding) + ")");
+                            // Pixel data and cursor shapes.
+                            if (!decoder.handleRect(this, updateRectEncoding, updateRectX, updateRectY, updateRectW, updateRectH))
+                                Log.e(TAG, "Unknown RFB rectangle encoding " + updateRectEncoding +
+                                            " (0x" + Integer.toHexString(updateRectEncoding) + ")");
                         }
                         
                         if (exitforloop) {
                             exitforloop = false;
                             break;
                         }
+                        metrics.decoderStats.add(updateRectEncoding, updateRectW * updateRectH, System.nanoTime() - rectStart);
                     }
-
-                    if (decoder.isChangedColorModel()) {
+                    if (pipeline == null)
+                        stopTiming();
+                    decoder.flushDamage();
+
+                    if (qualityController != null)
+                        adaptQuality();
+                    measureRoundTrip();
+
+                    if (decoder.isChangedColorModel() && decoder.isRequestedColorModel()) {
+                        // Wait for the format asked for last to arrive before asking for another.
+                        if (!continuousUpdatesActive)
+                            canvas.writeFullUpdateRequest(true);
+                    } else if (decoder.isChangedColorModel() && fencesSupported) {
+                        // Requests other than the one answered may still be outstanding, and their
+                        // updates are sent in the old pixel format. The server answers a fence with
+                        // the SyncNext flag right after handling the message that follows it, so
+                        // anything received before the answer is in the old format, and anything
+                        // after it in the new one.
+                        writeFence(FenceFlagRequest | FenceFlagSyncNext, PixelFormatFence.length, PixelFormatFence);
+                        decoder.requestPixelFormat(this);
+                        if (!continuousUpdatesActive)
+                            canvas.writeFullUpdateRequest(true);
+                    } else if (continuousUpdatesActive) {
+                        // Updates already on their way are in the old pixel format, so stop the
+                        // stream and switch formats once the server says it has stopped.
+                        if (decoder.isChangedColorModel() && !continuousUpdatesStopping) {
+                            writeEnableContinuousUpdates(false, 0, 0, framebufferWidth, framebufferHeight);
+                            continuousUpdatesStopping = true;
+                        }
+                    } else if (decoder.isChangedColorModel()) {
                         decoder.setPixelFormat(this);
                         //setEncodings();
                         canvas.writeFullUpdateRequest(false);
@@ -1928,6 +2272,44 @@ class RfbProto implements RfbConnectable {
                     }
                     break;
 
+                case RfbProto.EndOfContinuousUpdates:
+                    // Sent once in reply to our SetEncodings if the server supports continuous
+                    // updates, and again whenever it stops sending them.
+                    if (continuousUpdatesStopping) {
+                        continuousUpdatesStopping = false;
+                        if (decoder.isChangedColorModel()) {
+                            decoder.setPixelFormat(this);
+                            canvas.writeFullUpdateRequest(false);
+                        }
+                    } else if (!continuousUpdatesActive) {
+                        Log.i(TAG, "Server supports continuous updates, enabling them");
+                    }
+                    writeEnableContinuousUpdates(true, 0, 0, framebufferWidth, framebufferHeight);
+                    continuousUpdatesActive = true;
+                    canvas.writePendingUpdateRequest();
+                    break;
+
+                case RfbProto.ServerFence:
+                    readFence();
+                    // Servers send fence requests to measure how far behind we are, and limit the
+                    // data in flight accordingly. We handle messages in order, so blocking before
+                    // and after is trivially honoured. When pipelined, this is the decoding thread,
+                    // so the server's window also covers data received but not yet decoded.
+                    if ((fenceFlags & FenceFlagRequest) != 0) {
+                        fencesSupported = true;
+                        writeFence(fenceFlags & (FenceFlagBlockBefore | FenceFlagBlockAfter), fenceLength, fenceData);
+                    } else if (isPixelFormatFence(fenceData, fenceLength) && decoder.isRequestedColorModel()) {
+                        // The server now sends the pixel format asked for along with this fence.
+                        decoder.usePixelFormat(this);
+                        canvas.writeFullUpdateRequest(false);
+                    } else if (fenceSentAt != 0) {
+                        // The answer to our own fence.
+                        roundTripMillis = (System.nanoTime() - fenceSentAt) / 1000000;
+                        metrics.setNetworkRoundTrip(roundTripMillis);
+                        fenceSentAt = 0;
+                    }
+                    break;
+
                 case RfbProto.SetColourMapEntries:
                     throw new Exception("Can't handle SetColourMapEntries message");
 
@@ -1953,16 +2335,84 @@ class RfbProto implements RfbConnectable {
                 }
             }
         } catch (Exception e) {
+            stopWriter();
             closeSocket();
             throw e;
         } finally {
+            stopWriter();
             closeSocket();
+            if (pipeline != null) {
+                pipeline.stop();
+                pipeline = null;
+            }
+            if (recorder != null) {
+                recorder.closeSession();
+                recorder = null;
+            }
+            Log.i(TAG, "Session metrics:\n" + metrics.snapshot());
             Log.v(TAG, "Closing VNC Connection");
         }
         closeSocket();
     }
 
 
+    /**
+     * Picks new encoding parameters and color depth if the measured bandwidth calls for them.
+     * A changed color model is picked up after the current update like any other.
+     */
+    private void adaptQuality() {
+        long kbits = kbitsPerSecond();
+        if (!qualityController.update(kbits, System.currentTimeMillis()))
+            return;
+
+        compressLevel = qualityController.compressLevel();
+        jpegQuality = qualityController.jpegQuality();
+        setEncodings();
+
+        // Colors reduced by us are restored to what the user chose, while a color model
+        // picked by the user in the meantime is left alone. Without fences or continuous
+        // updates, there is no telling whether updates for requests still outstanding are
+        // sent before or after the switch, so the color model is then left alone as well,
+        // as it is while recording.
+        COLORMODEL current = decoder.getColorModel();
+        if (current != null && !isRecording() && (fencesSupported || continuousUpdatesActive)) {
+            if (current == reducedColorModel)
+                current = chosenColorModel;
+            COLORMODEL cm = qualityController.colorModel(current);
+            chosenColorModel = current;
+            reducedColorModel = (cm != current) ? cm : null;
+            decoder.setColorModel(cm);
+        }
+
+        Log.i(TAG, "Bandwidth " + kbits + " kbit/s, round trip " + roundTripMillis + " ms, link is " +
+                   QualityController.levelName(qualityController.level()) + ": compression level " +
+                   compressLevel + ", JPEG quality " + jpegQuality);
+    }
+
+    /**
+     * @return true if a fence with the given payload is the answer to the one sent with a SetPixelFormat.
+     */
+    static boolean isPixelFormatFence(byte[] data, int len) {
+        if (len != PixelFormatFence.length)
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (data[i] != PixelFormatFence[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends a fence to time the round trip to the server, at most once a second.
+     */
+    private void measureRoundTrip() throws IOException {
+        long now = System.nanoTime();
+        if (!fencesSupported || fenceSentAt != 0 || now - lastFenceAt < 1000000000L)
+            return;
+        writeFence(FenceFlagRequest, 0, fenceData);
+        fenceSentAt = lastFenceAt = now;
+    }
+
     @Override
     public void requestResolution(int x, int y) {
         // TODO Auto-generated method stub
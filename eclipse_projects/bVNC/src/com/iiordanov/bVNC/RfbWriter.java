@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Sends client messages to the server from a thread of its own.
+ * <p>
+ * Writing to this OutputStream only queues a copy of the bytes and wakes the sender thread up,
+ * so the UI thread never waits on a stalled TCP connection. The queue is lock-free and may be
+ * written to from any number of threads. Each time it wakes up, the sender gathers everything
+ * queued by then into a single write to the socket, so that key, pointer and update request
+ * messages produced close together go out in as few segments as possible.
+ * </p>
+ * <p>
+ * Stopping the writer sends whatever is still queued before the sender thread exits, so that
+ * messages written just before the connection is closed, such as key releases, still reach the
+ * server. Once writing to the socket fails, the error is thrown from all further writes.
+ * </p>
+ */
+class RfbWriter extends OutputStream implements Runnable {
+    private final static String TAG = "RfbWriter";
+
+    // Size of the buffer messages are gathered in. Larger batches are written in several parts.
+    static final int BATCH_SIZE = 8192;
+    // How long stop() waits for the sender thread to send what is still queued.
+    static final int STOP_TIMEOUT_MILLIS = 500;
+
+    private OutputStream out;
+    private Thread senderThread;
+    private volatile boolean running = false;
+    private volatile IOException error = null;
+
+    private ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();
+
+    // Owned by the sender thread.
+    private byte[] batch = new byte[BATCH_SIZE];
+    private int batchLen = 0;
+
+    /**
+     * @param out Stream connected to the socket.
+     */
+    RfbWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    void start() {
+        running = true;
+        senderThread = new Thread(this, TAG);
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    /**
+     * Stops accepting messages, and waits briefly for the sender thread to send the ones queued.
+     */
+    void stop() {
+        running = false;
+        if (senderThread == null)
+            return;
+        LockSupport.unpark(senderThread);
+        if (Thread.currentThread() == senderThread)
+            return;
+        try {
+            senderThread.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //
+    // Producer side.
+    //
+
+    @Override
+    public void write(int b) throws IOException {
+        enqueue(new byte[] { (byte) b });
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len <= 0)
+            return;
+        byte[] message = new byte[len];
+        System.arraycopy(b, off, message, 0, len);
+        enqueue(message);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Everything queued goes out as soon as the sender thread gets to it.
+        if (error != null)
+            throw error;
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    private void enqueue(byte[] message) throws IOException {
+        if (error != null)
+            throw error;
+        if (!running)
+            throw new IOException("RFB writer stopped");
+        queue.offer(message);
+        LockSupport.unpark(senderThread);
+    }
+
+    //
+    // Sender side.
+    //
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                // Read before polling, so that all messages queued before stop() are sent.
+                boolean stopping = !running;
+                byte[] message = queue.poll();
+                if (message == null) {
+                    // Everything queued so far is gathered, so send it and wait for more.
+                    if (batchLen > 0)
+                        sendBatch();
+                    if (stopping)
+                        break;
+                    LockSupport.park(this);
+                    continue;
+                }
+                if (batchLen + message.length > BATCH_SIZE)
+                    sendBatch();
+                if (message.length > BATCH_SIZE) {
+                    out.write(message);
+                    out.flush();
+                } else {
+                    System.arraycopy(message, 0, batch, batchLen, message.length);
+                    batchLen += message.length;
+                }
+            }
+        } catch (IOException e) {
+            if (running)
+                Log.i(TAG, "Sender stopped: " + e.getMessage());
+            error = e;
+            running = false;
+        }
+        queue.clear();
+    }
+
+    private void sendBatch() throws IOException {
+        out.write(batch, 0, batchLen);
+        out.flush();
+        batchLen = 0;
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+/**
+ * Collects performance figures for one VNC session, to find out where the time goes when
+ * a desktop feels sluggish.
+ * <p>
+ * Besides the per-encoding figures kept in DecoderStats, it counts the bytes received from
+ * the server, the time spent inflating zlib data and uploading pixels into bitmaps, screen
+ * invalidations, and how long it takes from sending an input event to receiving the next
+ * framebuffer update. Rates are worked out over intervals of at least a second, whenever
+ * the figures are looked at.
+ * </p>
+ * <p>
+ * Each rectangle, and each inflate and upload done once per rectangle, is always timed, so that
+ * the figures logged at the end of a session are complete. Taking the time around every tile
+ * and every buffer of inflated data costs more than some of the work measured, so that finer
+ * timing is only done while the figures are shown.
+ * </p>
+ */
+class SessionMetrics {
+    final DecoderStats decoderStats = new DecoderStats();
+
+    private long startTime = System.currentTimeMillis();
+    private volatile boolean detailedTiming = false;
+
+    private long bytesReceived = 0;
+    private long updates = 0;
+    private long inflates = 0;
+    private long inflateNanos = 0;
+    private long uploads = 0;
+    private long uploadNanos = 0;
+    private long invalidations = 0;
+    private long inputRoundTrips = 0;
+    private long inputRoundTripNanos = 0;
+    private long lastInputRoundTripNanos = 0;
+    private long networkRoundTripMillis = -1;
+
+    // Totals when the rates were last worked out, and the rates themselves.
+    private long rateTime = startTime;
+    private long rateBytes = 0;
+    private long rateUpdates = 0;
+    private long rateInvalidations = 0;
+    private long bytesPerSecond = 0;
+    private long updatesPerSecond = 0;
+    private long invalidationsPerSecond = 0;
+
+    synchronized void addBytesReceived(int n) {
+        bytesReceived += n;
+    }
+
+    synchronized void addUpdate() {
+        updates++;
+    }
+
+    void setDetailedTiming(boolean detailedTiming) {
+        this.detailedTiming = detailedTiming;
+    }
+
+    /**
+     * @return true if time spent decoding is to be measured per tile, as well as per rectangle.
+     */
+    boolean isDetailedTiming() {
+        return detailedTiming;
+    }
+
+    /**
+     * Adds up the time spent inflating and uploading during one framebuffer update.
+     */
+    synchronized void addDecodeTimes(long inflates, long inflateNanos, long uploads, long uploadNanos) {
+        this.inflates     += inflates;
+        this.inflateNanos += inflateNanos;
+        this.uploads      += uploads;
+        this.uploadNanos  += uploadNanos;
+    }
+
+    synchronized void addInvalidation() {
+        invalidations++;
+    }
+
+    /**
+     * @param nanos Time from sending an input event to receiving the next framebuffer update.
+     */
+    synchronized void addInputRoundTrip(long nanos) {
+        inputRoundTrips++;
+        inputRoundTripNanos += nanos;
+        lastInputRoundTripNanos = nanos;
+    }
+
+    /**
+     * @param millis Round trip time to the server measured with a fence.
+     */
+    synchronized void setNetworkRoundTrip(long millis) {
+        networkRoundTripMillis = millis;
+    }
+
+    private void updateRates(long now) {
+        long elapsed = now - rateTime;
+        if (elapsed < 1000)
+            return;
+        bytesPerSecond         = (bytesReceived - rateBytes) * 1000 / elapsed;
+        updatesPerSecond       = (updates - rateUpdates) * 1000 / elapsed;
+        invalidationsPerSecond = (invalidations - rateInvalidations) * 1000 / elapsed;
+        rateTime          = now;
+        rateBytes         = bytesReceived;
+        rateUpdates       = updates;
+        rateInvalidations = invalidations;
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f ms", nanos / 1000000.0);
+    }
+
+    private static String average(long nanos, long count) {
+        return (count == 0) ? "-" : millis(nanos / count);
+    }
+
+    /**
+     * @return A few short lines with the current rates and latencies, for display over the desktop.
+     */
+    synchronized String[] overlayLines() {
+        updateRates(System.currentTimeMillis());
+        return new String[] {
+            (bytesPerSecond * 8 / 1000) + " kbit/s, " + updatesPerSecond + " updates/s, " +
+                invalidationsPerSecond + " invalidations/s",
+            "input to update: " + (inputRoundTrips == 0 ? "-" : millis(lastInputRoundTripNanos)) +
+                ", avg " + average(inputRoundTripNanos, inputRoundTrips) +
+                ", network round trip: " + (networkRoundTripMillis < 0 ? "-" : networkRoundTripMillis + " ms"),
+            "inflate avg " + average(inflateNanos, inflates) + ", upload avg " + average(uploadNanos, uploads)
+        };
+    }
+
+    /**
+     * @return Everything collected so far, for the log.
+     */
+    synchronized String snapshot() {
+        long now = System.currentTimeMillis();
+        updateRates(now);
+        StringBuilder s = new StringBuilder();
+        s.append("Session time: ").append((now - startTime) / 1000).append(" s\n")
+         .append("Bytes received: ").append(bytesReceived).append(", now ")
+         .append(bytesPerSecond * 8 / 1000).append(" kbit/s\n")
+         .append("Framebuffer updates: ").append(updates).append(", now ")
+         .append(updatesPerSecond).append("/s\n")
+         .append("Invalidations: ").append(invalidations).append(", now ")
+         .append(invalidationsPerSecond).append("/s\n")
+         .append("Inflate: ").append(inflates).append(" times, ").append(millis(inflateNanos))
+         .append(" total, avg ").append(average(inflateNanos, inflates)).append('\n')
+         .append("Bitmap upload: ").append(uploads).append(" times, ").append(millis(uploadNanos))
+         .append(" total, avg ").append(average(uploadNanos, uploads)).append('\n')
+         .append("Input to next update: ").append(inputRoundTrips).append(" times, avg ")
+         .append(average(inputRoundTripNanos, inputRoundTrips)).append('\n')
+         .append("Network round trip: ")
+         .append(networkRoundTripMillis < 0 ? "not measured" : networkRoundTripMillis + " ms").append('\n')
+         .append(decoderStats);
+        return s.toString();
+    }
+}
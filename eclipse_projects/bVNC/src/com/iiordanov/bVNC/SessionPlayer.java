@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads back the server data of an FBS file, such as one written by SessionRecorder.
+ * The data is returned as fast as it is read; the block timestamps are ignored.
+ */
+class SessionPlayer extends InputStream {
+
+    private DataInputStream fbs;
+
+    // Bytes left in the current block, and the padding that follows them.
+    private boolean inBlock = false;
+    private int remaining = 0;
+    private int padding = 0;
+
+    SessionPlayer(String fname) throws IOException {
+        fbs = new DataInputStream(new BufferedInputStream(new FileInputStream(fname), 65536));
+        byte[] header = new byte[SessionRecorder.FBS_HEADER.length()];
+        fbs.readFully(header);
+        if (!new String(header).startsWith("FBS 001.")) {
+            fbs.close();
+            throw new IOException("File " + fname + " is not an FBS session recording");
+        }
+    }
+
+    /**
+     * Moves on to the next block with data in it.
+     * @return false at the end of the recording.
+     */
+    private boolean nextBlock() throws IOException {
+        while (remaining == 0) {
+            if (inBlock) {
+                // Skip the padding and timestamp that follow the data of the previous block.
+                fbs.skipBytes(padding + 4);
+                inBlock = false;
+            }
+            try {
+                remaining = fbs.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            padding = (4 - remaining % 4) % 4;
+            inBlock = true;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock())
+            return -1;
+        remaining--;
+        return fbs.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!nextBlock())
+            return -1;
+        int n = fbs.read(b, off, Math.min(len, remaining));
+        if (n > 0)
+            remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return Math.min(remaining, fbs.available());
+    }
+
+    @Override
+    public void close() throws IOException {
+        fbs.close();
+    }
+}
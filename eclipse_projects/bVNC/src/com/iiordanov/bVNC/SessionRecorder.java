@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+/**
+ * Records the server side of an RFB session into an FBS file while passing it on unchanged.
+ * <p>
+ * An FBS file starts with the line "FBS 001.000", followed by blocks of server data. Each block
+ * is a 32-bit length, the data padded to a multiple of four bytes, and a 32-bit timestamp in
+ * milliseconds since the start of the recording. The recorded stream itself begins with the
+ * protocol version, security type None and ServerInit, so it can be played back by any FBS player,
+ * including SessionPlayer.
+ * </p>
+ * <p>
+ * Bytes are recorded as they are consumed by the protocol, so recording has to start right
+ * after ServerInit, before any compressed rectangles are received. For the same reason, there
+ * is no starting over with a new ServerInit, and the pixel format may not be changed while
+ * recording. Failing to write the file stops the recording, but never the session.
+ * </p>
+ */
+class SessionRecorder extends FilterInputStream {
+    private final static String TAG = "SessionRecorder";
+
+    static final String FBS_HEADER = "FBS 001.000\n";
+
+    private static final int BLOCK_SIZE = 65536;
+
+    private DataOutputStream out;
+    private String fname;
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLen = 0;
+    private long startTime;
+    private long blockTime;
+    private byte[] skipBuffer;
+    private byte[] oneByte = new byte[1];
+
+    SessionRecorder(InputStream in, String fname) throws IOException {
+        super(in);
+        this.fname = fname;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname)));
+        out.write(FBS_HEADER.getBytes());
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Records the messages that precede the normal protocol: the protocol version, security
+     * type None, and a ServerInit with the given size, pixel format and desktop name.
+     * @param pixelFormat The 16-byte pixel format the server is sending pixels in.
+     */
+    void writeServerInit(int width, int height, byte[] pixelFormat, String desktopName) {
+        byte[] name = desktopName.getBytes();
+        byte[] init = new byte[12 + 4 + 4 + 16 + 4 + name.length];
+        int i = 0;
+        byte[] version = RfbProto.versionMsg_3_3.getBytes();
+        System.arraycopy(version, 0, init, i, version.length);
+        i += version.length;
+        i = putInt(init, i, RfbProto.SecTypeNone);
+        init[i++] = (byte) (width >> 8);
+        init[i++] = (byte) width;
+        init[i++] = (byte) (height >> 8);
+        init[i++] = (byte) height;
+        System.arraycopy(pixelFormat, 0, init, i, 16);
+        i += 16;
+        i = putInt(init, i, name.length);
+        System.arraycopy(name, 0, init, i, name.length);
+        record(init, 0, init.length);
+    }
+
+    private static int putInt(byte[] b, int i, int v) {
+        b[i++] = (byte) (v >> 24);
+        b[i++] = (byte) (v >> 16);
+        b[i++] = (byte) (v >> 8);
+        b[i++] = (byte) v;
+        return i;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            oneByte[0] = (byte) b;
+            record(oneByte, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0)
+            record(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes are part of the session too, so read them in order to record them.
+        if (skipBuffer == null)
+            skipBuffer = new byte[4096];
+        int r = read(skipBuffer, 0, (int) Math.min(n, skipBuffer.length));
+        return (r < 0) ? 0 : r;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Writes out what is left of the recording and closes the file. The stream being recorded is left open.
+     */
+    void closeSession() {
+        if (out == null)
+            return;
+        try {
+            flushBlock();
+            out.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not finish writing session file " + fname);
+            e.printStackTrace();
+        }
+        out = null;
+    }
+
+    private void record(byte[] b, int off, int len) {
+        long now = System.currentTimeMillis();
+        if (blockLen > 0 && now != blockTime)
+            flushBlock();
+        while (len > 0) {
+            if (blockLen == 0)
+                blockTime = now;
+            int n = Math.min(len, BLOCK_SIZE - blockLen);
+            System.arraycopy(b, off, block, blockLen, n);
+            blockLen += n;
+            off += n;
+            len -= n;
+            if (blockLen == BLOCK_SIZE)
+                flushBlock();
+        }
+    }
+
+    private void flushBlock() {
+        if (blockLen == 0)
+            return;
+        if (out != null) {
+            try {
+                out.writeInt(blockLen);
+                out.write(block, 0, blockLen);
+                for (int pad = (4 - blockLen % 4) % 4; pad > 0; pad--)
+                    out.write(0);
+                out.writeInt((int) (blockTime - startTime));
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write to session file " + fname + ", recording stopped");
+                e.printStackTrace();
+                try {
+                    out.close();
+                } catch (IOException e1) {}
+                out = null;
+            }
+        }
+        blockLen = 0;
+    }
+}
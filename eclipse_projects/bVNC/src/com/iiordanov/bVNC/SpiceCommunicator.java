@@ -364,6 +364,11 @@ public class SpiceCommunicator implements RfbConnectable {
         
     }
     
+    @Override
+    public void writeKeySyms(int[] keysyms, int count, int metaState) {
+        // NOT USED for SPICE.
+    }
+    
     @Override
     public void close() {
         disconnect();
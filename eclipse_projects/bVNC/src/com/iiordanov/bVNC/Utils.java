@@ -279,6 +279,11 @@ public class Utils {
         return sp.getBoolean(key, false);
     }
     
+    public static int querySharedPreferenceInt(Context context, String key, int defaultValue) {
+        SharedPreferences sp = context.getSharedPreferences(Constants.generalSettingsTag, Context.MODE_PRIVATE);
+        return sp.getInt(key, defaultValue);
+    }
+    
     public static void toggleSharedPreferenceBoolean(Context context,String key) {
         SharedPreferences sp = context.getSharedPreferences("generalSettings", Context.MODE_PRIVATE);
         boolean state = sp.getBoolean(key, false);
@@ -55,6 +55,53 @@ public class ZlibInStream extends InStream {
 
   public int pos() { return ptrOffset + ptr; }
 
+  // readAll() decompresses everything that is left of the underlying stream
+  // straight into data, enlarging it as the output grows, up to limit bytes.
+  // It returns the array holding the output, which is data unless that was
+  // too small, and leaves the number of bytes produced in readAllLength. As it
+  // is called once per rectangle, it is always timed, as a whole.
+
+  public byte[] readAll(byte[] data, int limit) throws Exception {
+    int offset = 0;
+    int n = end - ptr;
+    if (n > data.length)
+      data = new byte[Math.max(n, Math.min(2 * data.length, limit))];
+    System.arraycopy(b, ptr, data, offset, n);
+    offset += n;
+    ptrOffset += end;
+    ptr = end = 0;
+
+    long inflateStart = System.nanoTime();
+    try {
+      while (bytesIn > 0) {
+        underlying.check(1);
+        int avail_in = underlying.getend() - underlying.getptr();
+        if (avail_in > bytesIn)
+          avail_in = bytesIn;
+
+        if (inflater.needsInput()) {
+          inflater.setInput(underlying.getbuf(), underlying.getptr(), avail_in);
+        }
+
+        offset += inflater.inflate(data, offset, data.length - offset);
+
+        if (inflater.needsInput()) {
+          bytesIn -= avail_in;
+          underlying.setptr(underlying.getptr() + avail_in);
+        } else if (offset == data.length) {
+          if (data.length >= limit)
+            throw new Exception("ZlibInStream: output buffer too small");
+          data = java.util.Arrays.copyOf(data, (int)Math.min(2L * data.length, limit));
+        }
+      }
+    } catch (java.util.zip.DataFormatException e) {
+      throw new Exception("ZlibInStream: inflate failed");
+    }
+    inflateNanos += System.nanoTime() - inflateStart;
+    readAllLength = offset;
+    return data;
+  }
+
   protected int overrun(int itemSize, int nItems) throws Exception {
     if (itemSize > bufSize)
       throw new Exception("ZlibInStream overrun: max itemSize exceeded");
@@ -94,7 +141,10 @@ public class ZlibInStream extends InStream {
         inflater.setInput(underlying.getbuf(), underlying.getptr(), avail_in);
       }
 
+      long inflateStart = timing ? System.nanoTime() : 0;
       int n = inflater.inflate(b, end, bufSize - end); 
+      if (timing)
+        inflateNanos += System.nanoTime() - inflateStart;
 
       end += n;
       if (inflater.needsInput()) {
@@ -111,4 +161,12 @@ public class ZlibInStream extends InStream {
   private int ptrOffset;
   private java.util.zip.Inflater inflater;
   private int bytesIn;
+
+  // Number of bytes produced by the last readAll().
+  public int readAllLength;
+
+  // Time spent inflating, in nanoseconds, by readAll() and, if timing, by other reads.
+  // Left for the caller to collect and reset.
+  public boolean timing;
+  public long inflateNanos;
 }
@@ -99,6 +99,14 @@ public class RemoteRdpKeyboard extends RemoteKeyboard {
         }
     }
 
+    /**
+     * Types the text on RdpCommunicator's input thread, all in one go.
+     */
+    @Override
+    public void sendText(String s) {
+        ((RdpCommunicator)rfb).writeText(s);
+    }
+
     public void sendMetaKey(MetaKeyBean meta) {
         RemotePointer pointer = canvas.getPointer();
         int x = pointer.getX();
@@ -15,7 +15,7 @@ public class RemoteRdpPointer extends RemotePointer {
     //private final static int PTRFLAGS_DOWN           = 0x8000;
     
     private final static int MOUSE_BUTTON_NONE       = 0x0000;
-    private final static int MOUSE_BUTTON_MOVE       = 0x0800;
+    public  final static int MOUSE_BUTTON_MOVE       = 0x0800;
     private final static int MOUSE_BUTTON_LEFT       = 0x1000;
     private final static int MOUSE_BUTTON_RIGHT      = 0x2000;
 
@@ -13,12 +13,68 @@ public class RemoteVncKeyboard extends RemoteKeyboard {
     private final static String TAG = "RemoteKeyboard";
     public static boolean rAltAsIsoL3Shift = false;
     
+    // Text at least this long is pasted through the clipboard if pasteLongText is set.
+    final static int PASTE_MIN_LENGTH = 256;
+    private boolean pasteLongText = false;
+    
     public RemoteVncKeyboard (RfbConnectable r, RemoteCanvas v, Handler h, boolean rAltAsIsoL3Shift) {
         super(r, v, h);
         // Indicate we want Right Alt to be ISO L3 SHIFT if preferred.
         if (rAltAsIsoL3Shift)
             RemoteVncKeyboard.rAltAsIsoL3Shift = rAltAsIsoL3Shift;
     }
+    
+    /**
+     * Makes sendText() put long text on the server's clipboard and paste it with Ctrl+V,
+     * rather than typing it. Whatever was on the server's clipboard is lost. Text that
+     * cannot be put on the clipboard as Latin-1, as the protocol requires, is still typed.
+     */
+    public void setPasteLongText(boolean pasteLongText) {
+        this.pasteLongText = pasteLongText;
+    }
+    
+    /**
+     * Types the text by sending the keysyms of all its characters at once, leaving it to the
+     * server to work out the keys and modifiers needed for each. Characters without a keysym
+     * of their own are sent as Unicode keysyms, as TigerVNC's viewer does.
+     */
+    @Override
+    public void sendText(String s) {
+        if (rfb == null || !rfb.isInNormalProtocol())
+            return;
+
+        int metaState = onScreenMetaState|hardwareMetaState;
+        if (pasteLongText && s.length() >= PASTE_MIN_LENGTH && metaState == 0 && isLatin1(s)) {
+            rfb.writeClientCutText(s);
+            rfb.writeKeyEvent('v', CTRL_MASK, true);
+            rfb.writeKeyEvent('v', CTRL_MASK, false);
+            return;
+        }
+
+        int[] keysyms = new int[s.length()];
+        int count = 0;
+        for (int i = 0; i < s.length(); ) {
+            int c = s.codePointAt(i);
+            i += Character.charCount(c);
+            if (c == '\n')
+                keysyms[count++] = 0xff0d;
+            else if (c == '\t')
+                keysyms[count++] = 0xff09;
+            else if (!Character.isISOControl(c)) {
+                int keysym = UnicodeToKeysym.translate(c);
+                keysyms[count++] = (keysym != -1) ? keysym : (0x01000000 | c);
+            }
+        }
+        rfb.writeKeySyms(keysyms, count, metaState);
+    }
+
+    private static boolean isLatin1(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0xff)
+                return false;
+        }
+        return true;
+    }
 
     public boolean processLocalKeyEvent(int keyCode, KeyEvent evt, int additionalMetaState) {
         android.util.Log.i(TAG, evt.toString() + " " + keyCode);
@@ -12,6 +12,9 @@
  * 
  * The array keysymtabbyucs, on the other hand, is sorted by unicode value.
  *
+ * Both arrays are compiled into CharTables when the class is loaded, so that
+ * conversions look their results up directly instead of searching for them.
+ *
  * We allow to represent any UCS character in the range U-00000000 to
  * U-00FFFFFF by a keysym value in the range 0x01000000 to 0x01ffffff.
  * This admittedly does not cover the entire 31-bit space of UCS, but
@@ -38,6 +41,8 @@
 package com.iiordanov.bVNC.input;
 import android.util.Log;
 
+import com.iiordanov.util.CharTable;
+
 public class XKeySymCoverter {
     private final static String TAG = "XKeySymCoverter";
 
@@ -1575,26 +1580,34 @@ public class XKeySymCoverter {
              };
 
 
+    // The arrays above indexed by keysym and by unicode value respectively.
+    private static final CharTable ucsByKeysym = new CharTable();
+    private static final CharTable keysymByUcs = new CharTable();
+
+    static {
+        for (int i = 0; i < keysymtab.length; i++) {
+            long ucs = searchKeysymtab(keysymtab[i][0]);
+            if (ucs > 0)
+                ucsByKeysym.put(keysymtab[i][0], (int)ucs);
+        }
+        for (int i = 0; i < keysymtabbyucs.length; i++) {
+            long keysym = searchKeysymtabbyucs(keysymtabbyucs[i][1]);
+            if (keysym > 0)
+                keysymByUcs.put(keysymtabbyucs[i][1], (int)keysym);
+        }
+    }
+
     public static long ucs2keysym (long ucs)
     {
-        int min = 0;
-        int max = keysymtabbyucs.length - 1;
-        int mid;
-
         /* first check for Latin-1 characters (1:1 mapping) */
         if ((ucs >= 0x0020 && ucs <= 0x007e) ||
                 (ucs >= 0x00a0 && ucs <= 0x00ff))
             return ucs;
 
-        while (max >= min) {
-            mid = (min + max) / 2;
-            if (keysymtabbyucs[mid][1] < ucs)
-                min = mid + 1;
-            else if (keysymtabbyucs[mid][1] > ucs)
-                max = mid - 1;
-            else {
-                return keysymtabbyucs[mid][0];
-            }
+        if ((ucs & ~0xffffL) == 0) {
+            int keysym = keysymByUcs.get((int)ucs);
+            if (keysym != 0)
+                return keysym;
         }
 
         //Log.d(TAG, "Could not convert unicode to X keysym: " + ucs);
@@ -1604,10 +1617,6 @@ public class XKeySymCoverter {
 
     public static long keysym2ucs(long keysym)
     {
-        int min = 0;
-        int max = keysymtab.length - 1;
-        int mid;
-
         /* first check for Latin-1 characters (1:1 mapping) */
         if ((keysym >= 0x0020 && keysym <= 0x007e) ||
                 (keysym >= 0x00a0 && keysym <= 0x00ff))
@@ -1617,6 +1626,46 @@ public class XKeySymCoverter {
         if ((keysym & 0xff000000) == 0x01000000)
             return keysym & 0x00ffffff;
 
+        if ((keysym & ~0xffffL) == 0) {
+            int ucs = ucsByKeysym.get((int)keysym);
+            if (ucs != 0)
+                return ucs;
+        }
+
+        //Log.d(TAG, "Could not convert X keysym to unicode: " + keysym);
+        /* no matching Unicode value found */
+        return -1;
+    }
+
+    /*
+     * Binary searches of the arrays, used to build the CharTables. Where a value is listed more
+     * than once, they pick the entry the conversions used to return.
+     */
+    private static long searchKeysymtabbyucs (long ucs)
+    {
+        int min = 0;
+        int max = keysymtabbyucs.length - 1;
+        int mid;
+
+        while (max >= min) {
+            mid = (min + max) / 2;
+            if (keysymtabbyucs[mid][1] < ucs)
+                min = mid + 1;
+            else if (keysymtabbyucs[mid][1] > ucs)
+                max = mid - 1;
+            else {
+                return keysymtabbyucs[mid][0];
+            }
+        }
+        return ucs;
+    }
+
+    private static long searchKeysymtab (long keysym)
+    {
+        int min = 0;
+        int max = keysymtab.length - 1;
+        int mid;
+
         /* binary search in table */
         while (max >= min) {
             mid = (min + max) / 2;
@@ -1629,9 +1678,6 @@ public class XKeySymCoverter {
                 return keysymtab[mid][1];
             }
         }
-
-        //Log.d(TAG, "Could not convert X keysym to unicode: " + keysym);
-        /* no matching Unicode value found */
         return -1;
     }
 }
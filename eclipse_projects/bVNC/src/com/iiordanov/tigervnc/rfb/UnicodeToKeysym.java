@@ -22,6 +22,8 @@
 
 package com.iiordanov.tigervnc.rfb;
 
+import com.iiordanov.util.CharTable;
+
 public class UnicodeToKeysym {
 
   public static short[][] table = {
@@ -770,11 +772,32 @@ public class UnicodeToKeysym {
     { 0x0ef7, 0x318e }
   };
 
+  // The table above indexed by Unicode value, so that translating takes no search.
+  private static final CharTable keysyms = new CharTable();
+
+  static {
+    for (int i = 0; i < table.length; i++) {
+      int keysym = search(table[i][1]);
+      if (keysym > 0)
+        keysyms.put(table[i][1], keysym);
+    }
+  }
+
   public static int translate(int unicode) {
     if ((unicode >= 0x20 && unicode <= 0x7e) ||
         (unicode >= 0xa0 && unicode <= 0xff))
       return unicode;
 
+    int keysym = keysyms.get(unicode);
+    if (keysym != 0)
+      return keysym;
+
+    /* no matching Unicode value found */
+    return -1;
+  }
+
+  // Binary search of the table, which picks the entry used for Unicode values listed more than once.
+  private static int search(int unicode) {
     int min = 0;
     int max = table.length - 1;
     int mid;
@@ -788,8 +811,6 @@ public class UnicodeToKeysym {
       else
         return table[mid][0];
     }
-
-    /* no matching Unicode value found */
     return -1;
   }
 }
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.util;
+
+import java.util.Arrays;
+
+/**
+ * Maps 16-bit keys to 16-bit values in constant time.
+ * <p>
+ * Keys are split into a page number and an index within the page, and only pages holding at least
+ * one key get memory of their own, so sparse tables stay small. Looking a key up takes two array
+ * reads and no searching. A value of 0 stands for no value.
+ * </p>
+ */
+public class CharTable {
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // Shared by all pages without any keys, so that lookups need no null check.
+    private static final char[] EMPTY_PAGE = new char[PAGE_SIZE];
+
+    private final char[][] pages = new char[1 << (16 - PAGE_BITS)][];
+
+    public CharTable() {
+        Arrays.fill(pages, EMPTY_PAGE);
+    }
+
+    /**
+     * @param key A value from 0 to 0xffff.
+     * @param value A value from 1 to 0xffff.
+     */
+    public void put(int key, int value) {
+        if ((key & ~0xffff) != 0 || (value & ~0xffff) != 0)
+            throw new IllegalArgumentException("Key or value out of range: " + key + ", " + value);
+        char[] page = pages[key >>> PAGE_BITS];
+        if (page == EMPTY_PAGE) {
+            page = new char[PAGE_SIZE];
+            pages[key >>> PAGE_BITS] = page;
+        }
+        page[key & PAGE_MASK] = (char) value;
+    }
+
+    /**
+     * @return The value of key, or 0 if it has none, or is out of range.
+     */
+    public int get(int key) {
+        if ((key & ~0xffff) != 0)
+            return 0;
+        return pages[key >>> PAGE_BITS][key & PAGE_MASK];
+    }
+}
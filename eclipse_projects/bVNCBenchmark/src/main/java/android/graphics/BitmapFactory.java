@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package android.graphics;
+
+/**
+ * Stands in for android.graphics.BitmapFactory. There is no image decoder on the desktop, so Tight
+ * JPEG and PNG rectangles cannot be replayed.
+ */
+public class BitmapFactory {
+    public static class Options {
+        public Bitmap inBitmap;
+        public boolean inPurgeable;
+        public boolean inDither;
+        public byte[] inTempStorage;
+        public Bitmap.Config inPreferredConfig;
+        public boolean inScaled;
+        public boolean inMutable;
+        public int inSampleSize;
+    }
+
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length, Options opts) {
+        return null;
+    }
+}
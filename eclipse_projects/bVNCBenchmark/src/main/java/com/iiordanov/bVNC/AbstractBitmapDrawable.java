@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Stands in for the viewer's AbstractBitmapDrawable, keeping only the soft cursor state the
+ * decoder sets.
+ */
+public class AbstractBitmapDrawable extends Drawable {
+    RectF cursorRect;
+    int hotX, hotY;
+    int[] softCursor;
+    boolean softCursorInit;
+
+    AbstractBitmapDrawable(AbstractBitmapData data) {
+        cursorRect = new RectF();
+        softCursorInit = false;
+    }
+
+    void startDrawing() {
+    }
+
+    void setCursorRect(int x, int y, float w, float h, int hX, int hY) {
+        hotX = hX;
+        hotY = hY;
+        cursorRect.left   = x-hotX;
+        cursorRect.right  = cursorRect.left + w;
+        cursorRect.top    = y-hotY;
+        cursorRect.bottom = cursorRect.top + h;
+    }
+
+    void moveCursorRect(int x, int y) {
+        setCursorRect(x, y, cursorRect.width(), cursorRect.height(), hotX, hotY);
+    }
+
+    void setSoftCursor(int[] newSoftCursorPixels) {
+        softCursor = newSoftCursorPixels;
+        softCursorInit = true;
+    }
+
+    void dispose() {
+        softCursor = null;
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+/**
+ * Server messages as a server sends them, together with the framebuffer they are meant to be
+ * applied to and, if known, the framebuffer they should produce.
+ */
+class Capture {
+    final String name;
+    final byte[] data;
+    final int width;
+    final int height;
+    // The color model the server sends pixels in.
+    final COLORMODEL colorModel;
+
+    // Framebuffer contents before and after the messages are decoded. Expected is null for
+    // recorded sessions, whose outcome is not known.
+    final int[] initial;
+    final int[] expected;
+
+    Capture(String name, byte[] data, int width, int height, COLORMODEL colorModel, int[] initial, int[] expected) {
+        this.name       = name;
+        this.data       = data;
+        this.width      = width;
+        this.height     = height;
+        this.colorModel = colorModel;
+        this.initial    = initial;
+        this.expected   = expected;
+    }
+}
@@ -0,0 +1,653 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import android.graphics.Color;
+
+/**
+ * Encodes a framebuffer the way a server would, into a single FramebufferUpdate covering it with
+ * rectangles of one encoding. Pixels are sent in the 32-bit true colour format the viewer asks for
+ * by default, and the decoded framebuffer is expected to match the encoded one exactly.
+ */
+class CaptureEncoder {
+    enum Variant {
+        RAW            ("Raw",            RfbProto.EncodingRaw,      256),
+        COPY_RECT      ("CopyRect",       RfbProto.EncodingCopyRect, 256),
+        RRE            ("RRE",            RfbProto.EncodingRRE,      128),
+        CORRE          ("CoRRE",          RfbProto.EncodingCoRRE,    128),
+        HEXTILE        ("Hextile",        RfbProto.EncodingHextile,  256),
+        ZLIB           ("Zlib",           RfbProto.EncodingZlib,     256),
+        ZRLE           ("ZRLE",           RfbProto.EncodingZRLE,     64),
+        ZRLE_LARGE     ("ZRLE large",     RfbProto.EncodingZRLE,     256),
+        TIGHT_FILL     ("Tight fill",     RfbProto.EncodingTight,    64),
+        TIGHT_PALETTE  ("Tight palette",  RfbProto.EncodingTight,    256),
+        TIGHT_GRADIENT ("Tight gradient", RfbProto.EncodingTight,    256),
+        TIGHT_COPY     ("Tight copy",     RfbProto.EncodingTight,    256);
+
+        final String label;
+        final int encoding;
+        final int rectSize;
+
+        Variant(String label, int encoding, int rectSize) {
+            this.label    = label;
+            this.encoding = encoding;
+            this.rectSize = rectSize;
+        }
+    }
+
+    // Stands for a Hextile colour the decoder does not know. Pixels are always opaque, so it
+    // never matches one.
+    private static final int UNKNOWN = 0;
+
+    // How far CopyRect rectangles are scrolled up.
+    static final int SCROLL = 16;
+
+    // Tight zlib streams, as used by the TightVNC server.
+    private static final int TIGHT_STREAM_COPY     = 0;
+    private static final int TIGHT_STREAM_MONO     = 1;
+    private static final int TIGHT_STREAM_INDEXED  = 2;
+    private static final int TIGHT_STREAM_GRADIENT = 3;
+
+    private final int[] frame;
+    private final int width;
+    private final int height;
+
+    // The pixels being encoded, and what the decoder should turn the framebuffer into.
+    private int[] src;
+    private int[] expected;
+
+    private DataOutputStream out;
+    private Deflater zlibDeflater;
+    private Deflater[] tightDeflaters = new Deflater[4];
+    private byte[] buf = new byte[1024];
+    private byte[] hextileRuns = new byte[16 * 16 * 6];
+    private byte[] deflated = new byte[1024];
+    private int deflatedLength;
+
+    CaptureEncoder(int[] frame, int width, int height) {
+        this.frame  = frame;
+        this.width  = width;
+        this.height = height;
+    }
+
+    Capture encode(Variant v) throws IOException {
+        src = (v == Variant.TIGHT_PALETTE) ? quantize(frame) : frame;
+        expected = src.clone();
+        zlibDeflater = new Deflater();
+        for (int i = 0; i < tightDeflaters.length; i++)
+            tightDeflaters[i] = new Deflater();
+
+        // CopyRect rectangles cover all but the bottom of the screen, which they are scrolled from.
+        int areaHeight = (v == Variant.COPY_RECT) ? height - SCROLL : height;
+        int size = v.rectSize;
+        int rects = ((width + size - 1) / size) * ((areaHeight + size - 1) / size);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        out.writeByte(RfbProto.FramebufferUpdate);
+        out.writeByte(0);
+        out.writeShort(rects);
+        for (int y = 0; y < areaHeight; y += size) {
+            int h = Math.min(size, areaHeight - y);
+            for (int x = 0; x < width; x += size) {
+                int w = Math.min(size, width - x);
+                out.writeShort(x);
+                out.writeShort(y);
+                out.writeShort(w);
+                out.writeShort(h);
+                out.writeInt(v.encoding);
+                switch (v) {
+                case RAW:
+                    writeRaw(x, y, w, h);
+                    break;
+                case COPY_RECT:
+                    writeCopyRect(x, y, w, h);
+                    break;
+                case RRE:
+                    writeRRE(x, y, w, h, false);
+                    break;
+                case CORRE:
+                    writeRRE(x, y, w, h, true);
+                    break;
+                case HEXTILE:
+                    writeHextile(x, y, w, h);
+                    break;
+                case ZLIB:
+                    writeZlib(x, y, w, h);
+                    break;
+                case ZRLE:
+                case ZRLE_LARGE:
+                    writeZRLE(x, y, w, h);
+                    break;
+                case TIGHT_FILL:
+                    writeTightFill(x, y, w, h, pixel(x + w / 2, y + h / 2));
+                    break;
+                case TIGHT_PALETTE:
+                    writeTightPalette(x, y, w, h);
+                    break;
+                case TIGHT_GRADIENT:
+                    writeTightGradient(x, y, w, h);
+                    break;
+                case TIGHT_COPY:
+                    writeTightCopy(x, y, w, h);
+                    break;
+                }
+            }
+        }
+
+        zlibDeflater.end();
+        for (int i = 0; i < tightDeflaters.length; i++)
+            tightDeflaters[i].end();
+        return new Capture(v.label, bytes.toByteArray(), width, height, COLORMODEL.C24bit, frame, expected);
+    }
+
+    //
+    // Pixels.
+    //
+
+    private int pixel(int x, int y) {
+        return src[y * width + x];
+    }
+
+    private byte[] buffer(int size) {
+        if (buf.length < size)
+            buf = new byte[size];
+        return buf;
+    }
+
+    // A pixel in the 32-bit format, which is little-endian.
+    private static int putBGRX(byte[] b, int i, int p) {
+        b[i++] = (byte)p;
+        b[i++] = (byte)(p >> 8);
+        b[i++] = (byte)(p >> 16);
+        b[i++] = 0;
+        return i;
+    }
+
+    // A ZRLE CPIXEL, which leaves out the unused byte.
+    private static int putBGR(byte[] b, int i, int p) {
+        b[i++] = (byte)p;
+        b[i++] = (byte)(p >> 8);
+        b[i++] = (byte)(p >> 16);
+        return i;
+    }
+
+    // A Tight TPIXEL, which is always red, green, blue.
+    private static int putRGB(byte[] b, int i, int p) {
+        b[i++] = (byte)(p >> 16);
+        b[i++] = (byte)(p >> 8);
+        b[i++] = (byte)p;
+        return i;
+    }
+
+    private void writeBGRX(int p) throws IOException {
+        putBGRX(buf, 0, p);
+        out.write(buf, 0, 4);
+    }
+
+    /**
+     * @return A copy of pixels with 3 bits of red and green and 2 of blue, so that no rectangle
+     * has more than 256 colours.
+     */
+    private static int[] quantize(int[] pixels) {
+        int[] q = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++)
+            q[i] = pixels[i] & 0xFFE0E0C0;
+        return q;
+    }
+
+    /**
+     * @return The colours of a rectangle, most frequent first, or null if there are more than max.
+     */
+    private int[] palette(int x, int y, int w, int h, int max) {
+        Map<Integer, int[]> counts = new HashMap<Integer, int[]>();
+        for (int j = y; j < y + h; j++) {
+            for (int i = x; i < x + w; i++) {
+                int[] count = counts.get(pixel(i, j));
+                if (count == null) {
+                    if (counts.size() == max)
+                        return null;
+                    counts.put(pixel(i, j), count = new int[1]);
+                }
+                count[0]++;
+            }
+        }
+        int[] colors = new int[counts.size()];
+        int[] frequencies = new int[counts.size()];
+        int n = 0;
+        for (Map.Entry<Integer, int[]> e : counts.entrySet()) {
+            int i = n++;
+            // Insertion sort, by decreasing frequency.
+            while (i > 0 && frequencies[i - 1] < e.getValue()[0]) {
+                colors[i] = colors[i - 1];
+                frequencies[i] = frequencies[i - 1];
+                i--;
+            }
+            colors[i] = e.getKey();
+            frequencies[i] = e.getValue()[0];
+        }
+        return colors;
+    }
+
+    private int deflate(Deflater d, byte[] data, int length) {
+        d.setInput(data, 0, length);
+        deflatedLength = 0;
+        do {
+            if (deflatedLength == deflated.length) {
+                byte[] b = new byte[2 * deflated.length];
+                System.arraycopy(deflated, 0, b, 0, deflatedLength);
+                deflated = b;
+            }
+            deflatedLength += d.deflate(deflated, deflatedLength, deflated.length - deflatedLength, Deflater.SYNC_FLUSH);
+        } while (deflatedLength == deflated.length);
+        return deflatedLength;
+    }
+
+    //
+    // Raw and CopyRect.
+    //
+
+    private void writeRaw(int x, int y, int w, int h) throws IOException {
+        byte[] b = buffer(w * 4);
+        for (int j = y; j < y + h; j++) {
+            int n = 0;
+            for (int i = x; i < x + w; i++)
+                n = putBGRX(b, n, pixel(i, j));
+            out.write(b, 0, n);
+        }
+    }
+
+    private void writeCopyRect(int x, int y, int w, int h) throws IOException {
+        out.writeShort(x);
+        out.writeShort(y + SCROLL);
+        for (int j = y; j < y + h; j++)
+            System.arraycopy(expected, (j + SCROLL) * width + x, expected, j * width + x, w);
+    }
+
+    //
+    // RRE and CoRRE, with every horizontal run of a colour other than the background as a
+    // subrectangle.
+    //
+
+    private void writeRRE(int x, int y, int w, int h, boolean compact) throws IOException {
+        int bg = palette(x, y, w, h, Integer.MAX_VALUE)[0];
+        ByteArrayOutputStream subrects = new ByteArrayOutputStream();
+        DataOutputStream s = new DataOutputStream(subrects);
+        byte[] p = new byte[4];
+        int n = 0;
+        for (int j = y; j < y + h; j++) {
+            for (int i = x; i < x + w; ) {
+                int c = pixel(i, j);
+                int run = 1;
+                while (i + run < x + w && pixel(i + run, j) == c)
+                    run++;
+                if (c != bg) {
+                    putBGRX(p, 0, c);
+                    s.write(p);
+                    if (compact) {
+                        s.writeByte(i - x);
+                        s.writeByte(j - y);
+                        s.writeByte(run);
+                        s.writeByte(1);
+                    } else {
+                        s.writeShort(i - x);
+                        s.writeShort(j - y);
+                        s.writeShort(run);
+                        s.writeShort(1);
+                    }
+                    n++;
+                }
+                i += run;
+            }
+        }
+        out.writeInt(n);
+        writeBGRX(bg);
+        subrects.writeTo(out);
+    }
+
+    //
+    // Hextile, choosing for each tile between a solid background, subrectangles of one or many
+    // colours, and raw pixels, whichever is smallest.
+    //
+
+    private void writeHextile(int x, int y, int w, int h) throws IOException {
+        // The decoder starts every rectangle with both colours black, and keeps them from tile to tile.
+        int bg = Color.BLACK;
+        int fg = Color.BLACK;
+        for (int ty = y; ty < y + h; ty += 16) {
+            int th = Math.min(16, y + h - ty);
+            for (int tx = x; tx < x + w; tx += 16) {
+                int tw = Math.min(16, x + w - tx);
+                int[] colors = palette(tx, ty, tw, th, 16 * 16);
+                int tileBg = colors[0];
+                int flags = (tileBg != bg) ? RfbProto.HextileBackgroundSpecified : 0;
+
+                if (colors.length == 1) {
+                    out.writeByte(flags);
+                    if (tileBg != bg)
+                        writeBGRX(tileBg);
+                    bg = tileBg;
+                    continue;
+                }
+
+                // Runs of anything but the background.
+                int n = 0;
+                byte[] runs = hextileRuns;
+                int r = 0;
+                boolean coloured = colors.length > 2;
+                for (int j = 0; j < th; j++) {
+                    for (int i = 0; i < tw; ) {
+                        int c = pixel(tx + i, ty + j);
+                        int run = 1;
+                        while (i + run < tw && pixel(tx + i + run, ty + j) == c)
+                            run++;
+                        if (c != tileBg) {
+                            if (coloured)
+                                r = putBGRX(runs, r, c);
+                            runs[r++] = (byte)(i << 4 | j);
+                            runs[r++] = (byte)((run - 1) << 4);
+                            n++;
+                        }
+                        i += run;
+                    }
+                }
+
+                if (n > 255 || r >= tw * th * 4) {
+                    out.writeByte(RfbProto.HextileRaw);
+                    writeRaw(tx, ty, tw, th);
+                    // What the decoder keeps for the next tile is not defined after a raw one.
+                    bg = fg = UNKNOWN;
+                    continue;
+                }
+
+                int tileFg = colors[1];
+                flags |= RfbProto.HextileAnySubrects;
+                if (coloured)
+                    flags |= RfbProto.HextileSubrectsColoured;
+                else if (tileFg != fg)
+                    flags |= RfbProto.HextileForegroundSpecified;
+                out.writeByte(flags);
+                if ((flags & RfbProto.HextileBackgroundSpecified) != 0)
+                    writeBGRX(tileBg);
+                if ((flags & RfbProto.HextileForegroundSpecified) != 0)
+                    writeBGRX(tileFg);
+                out.writeByte(n);
+                out.write(runs, 0, r);
+                bg = tileBg;
+                // Coloured subrectangles leave the last of their colours as the foreground.
+                if (coloured)
+                    fg = (runs[r - 6] & 0xFF) | (runs[r - 5] & 0xFF) << 8 | (runs[r - 4] & 0xFF) << 16 | 0xFF000000;
+                else
+                    fg = tileFg;
+            }
+        }
+    }
+
+    //
+    // Zlib, which is raw pixels through a zlib stream kept for the whole session.
+    //
+
+    private void writeZlib(int x, int y, int w, int h) throws IOException {
+        byte[] b = new byte[w * h * 4];
+        int n = 0;
+        for (int j = y; j < y + h; j++)
+            for (int i = x; i < x + w; i++)
+                n = putBGRX(b, n, pixel(i, j));
+        out.writeInt(deflate(zlibDeflater, b, n));
+        out.write(deflated, 0, deflatedLength);
+    }
+
+    //
+    // ZRLE, choosing for each 64x64 tile between a solid colour, packed palette indices, palette
+    // RLE, plain RLE and raw pixels, whichever is smallest.
+    //
+
+    private void writeZRLE(int x, int y, int w, int h) throws IOException {
+        ByteArrayOutputStream tiles = new ByteArrayOutputStream();
+        for (int ty = y; ty < y + h; ty += 64) {
+            int th = Math.min(64, y + h - ty);
+            for (int tx = x; tx < x + w; tx += 64) {
+                int tw = Math.min(64, x + w - tx);
+                writeZRLETile(tiles, tx, ty, tw, th);
+            }
+        }
+        byte[] data = tiles.toByteArray();
+        out.writeInt(deflate(zlibDeflater, data, data.length));
+        out.write(deflated, 0, deflatedLength);
+    }
+
+    private void writeZRLETile(ByteArrayOutputStream t, int tx, int ty, int tw, int th) {
+        int[] colors = palette(tx, ty, tw, th, 127);
+        byte[] b = buffer(1 + 127 * 3 + tw * th * 4);
+        int n = 0;
+
+        if (colors != null && colors.length == 1) {
+            b[n++] = 1;
+            n = putBGR(b, n, colors[0]);
+            t.write(b, 0, n);
+            return;
+        }
+
+        // Sizes of the tile as runs, for palette and plain RLE.
+        int runs = 0;
+        int runBytes = 0;
+        for (int p = 0; p < tw * th; ) {
+            int len = runLength(tx, ty, tw, th, p);
+            runs++;
+            runBytes += 1 + (len - 1) / 255;
+            p += len;
+        }
+
+        if (colors != null) {
+            Map<Integer, Integer> index = new HashMap<Integer, Integer>();
+            for (int i = 0; i < colors.length; i++)
+                index.put(colors[i], i);
+            int bppp = ((colors.length > 16) ? 8 : ((colors.length > 4) ? 4 : ((colors.length > 2) ? 2 : 1)));
+            int packedSize = th * ((tw * bppp + 7) / 8);
+            boolean rle = runs + runBytes < packedSize;
+
+            b[n++] = (byte)((rle ? 128 : 0) | colors.length);
+            for (int i = 0; i < colors.length; i++)
+                n = putBGR(b, n, colors[i]);
+            if (rle) {
+                for (int p = 0; p < tw * th; ) {
+                    int len = runLength(tx, ty, tw, th, p);
+                    int i = index.get(pixel(tx + p % tw, ty + p / tw));
+                    if (len == 1) {
+                        b[n++] = (byte)i;
+                    } else {
+                        b[n++] = (byte)(i | 128);
+                        n = putRunLength(b, n, len);
+                    }
+                    p += len;
+                }
+            } else {
+                for (int j = 0; j < th; j++) {
+                    int bits = 0;
+                    int nbits = 0;
+                    for (int i = 0; i < tw; i++) {
+                        bits = bits << bppp | index.get(pixel(tx + i, ty + j));
+                        nbits += bppp;
+                        if (nbits == 8) {
+                            b[n++] = (byte)bits;
+                            bits = nbits = 0;
+                        }
+                    }
+                    if (nbits > 0)
+                        b[n++] = (byte)(bits << (8 - nbits));
+                }
+            }
+        } else if (runs * 3 + runBytes < tw * th * 3) {
+            b[n++] = (byte)128;
+            for (int p = 0; p < tw * th; ) {
+                int len = runLength(tx, ty, tw, th, p);
+                n = putBGR(b, n, pixel(tx + p % tw, ty + p / tw));
+                n = putRunLength(b, n, len);
+                p += len;
+            }
+        } else {
+            b[n++] = 0;
+            for (int j = ty; j < ty + th; j++)
+                for (int i = tx; i < tx + tw; i++)
+                    n = putBGR(b, n, pixel(i, j));
+        }
+        t.write(b, 0, n);
+    }
+
+    /**
+     * @return The length of the run of one colour starting at pixel p of a tile, which may wrap
+     * from one row of the tile to the next.
+     */
+    private int runLength(int tx, int ty, int tw, int th, int p) {
+        int c = pixel(tx + p % tw, ty + p / tw);
+        int len = 1;
+        while (p + len < tw * th && pixel(tx + (p + len) % tw, ty + (p + len) / tw) == c)
+            len++;
+        return len;
+    }
+
+    private static int putRunLength(byte[] b, int n, int len) {
+        len--;
+        while (len >= 255) {
+            b[n++] = (byte)255;
+            len -= 255;
+        }
+        b[n++] = (byte)len;
+        return n;
+    }
+
+    //
+    // Tight, with each capture using a single kind of rectangle.
+    //
+
+    private void writeCompactLen(int len) throws IOException {
+        out.writeByte(len & 0x7F | (len > 0x7F ? 0x80 : 0));
+        if (len > 0x7F) {
+            out.writeByte(len >> 7 & 0x7F | (len > 0x3FFF ? 0x80 : 0));
+            if (len > 0x3FFF)
+                out.writeByte(len >> 14 & 0xFF);
+        }
+    }
+
+    // Data shorter than TightMinToCompress is sent as it is.
+    private void writeTightData(int stream, byte[] data, int length) throws IOException {
+        if (length < RfbProto.TightMinToCompress) {
+            out.write(data, 0, length);
+            return;
+        }
+        writeCompactLen(deflate(tightDeflaters[stream], data, length));
+        out.write(deflated, 0, deflatedLength);
+    }
+
+    private void writeTightFill(int x, int y, int w, int h, int color) throws IOException {
+        out.writeByte(RfbProto.TightFill << 4);
+        putRGB(buf, 0, color);
+        out.write(buf, 0, 3);
+        for (int j = y; j < y + h; j++)
+            for (int i = x; i < x + w; i++)
+                expected[j * width + i] = color;
+    }
+
+    private void writeTightPalette(int x, int y, int w, int h) throws IOException {
+        int[] colors = palette(x, y, w, h, 256);
+        if (colors.length == 1) {
+            writeTightFill(x, y, w, h, colors[0]);
+            return;
+        }
+
+        int stream = (colors.length == 2) ? TIGHT_STREAM_MONO : TIGHT_STREAM_INDEXED;
+        out.writeByte((RfbProto.TightExplicitFilter | stream) << 4);
+        out.writeByte(RfbProto.TightFilterPalette);
+        out.writeByte(colors.length - 1);
+        byte[] b = buffer(colors.length * 3);
+        int n = 0;
+        for (int i = 0; i < colors.length; i++)
+            n = putRGB(b, n, colors[i]);
+        out.write(b, 0, n);
+
+        Map<Integer, Integer> index = new HashMap<Integer, Integer>();
+        for (int i = 0; i < colors.length; i++)
+            index.put(colors[i], i);
+        b = new byte[w * h];
+        n = 0;
+        if (colors.length == 2) {
+            // One bit per pixel, rows padded to whole bytes.
+            for (int j = y; j < y + h; j++) {
+                int bits = 0;
+                int nbits = 0;
+                for (int i = x; i < x + w; i++) {
+                    bits = bits << 1 | index.get(pixel(i, j));
+                    if (++nbits == 8) {
+                        b[n++] = (byte)bits;
+                        bits = nbits = 0;
+                    }
+                }
+                if (nbits > 0)
+                    b[n++] = (byte)(bits << (8 - nbits));
+            }
+        } else {
+            for (int j = y; j < y + h; j++)
+                for (int i = x; i < x + w; i++)
+                    b[n++] = (byte)(int)index.get(pixel(i, j));
+        }
+        writeTightData(stream, b, n);
+    }
+
+    private void writeTightGradient(int x, int y, int w, int h) throws IOException {
+        out.writeByte((RfbProto.TightExplicitFilter | TIGHT_STREAM_GRADIENT) << 4);
+        out.writeByte(RfbProto.TightFilterGradient);
+
+        // Each channel is sent as its difference from up + left - upLeft, clamped to 0..255, with
+        // pixels outside the rectangle taken to be black.
+        byte[] b = new byte[w * h * 3];
+        int n = 0;
+        for (int j = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                int up     = (j > 0) ? pixel(x + i, y + j - 1) : 0;
+                int left   = (i > 0) ? pixel(x + i - 1, y + j) : 0;
+                int upLeft = (i > 0 && j > 0) ? pixel(x + i - 1, y + j - 1) : 0;
+                int p = pixel(x + i, y + j);
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    int est = (up >> shift & 0xFF) + (left >> shift & 0xFF) - (upLeft >> shift & 0xFF);
+                    est = Math.max(0, Math.min(255, est));
+                    b[n++] = (byte)((p >> shift) - est);
+                }
+            }
+        }
+        writeTightData(TIGHT_STREAM_GRADIENT, b, n);
+    }
+
+    private void writeTightCopy(int x, int y, int w, int h) throws IOException {
+        out.writeByte(TIGHT_STREAM_COPY << 4);
+        byte[] b = new byte[w * h * 3];
+        int n = 0;
+        for (int j = y; j < y + h; j++)
+            for (int i = x; i < x + w; i++)
+                n = putRGB(b, n, pixel(i, j));
+        writeTightData(TIGHT_STREAM_COPY, b, n);
+    }
+}
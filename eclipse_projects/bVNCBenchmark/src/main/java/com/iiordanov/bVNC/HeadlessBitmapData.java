@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.graphics.Paint;
+
+import com.iiordanov.android.drawing.OverlappingCopy;
+
+/**
+ * Keeps the whole framebuffer in bitmapPixels, like FullBufferBitmapData, but has no bitmap to
+ * upload the pixels into, so that replays measure the decoder alone.
+ */
+class HeadlessBitmapData extends AbstractBitmapData {
+    HeadlessBitmapData(RfbConnectable rfb, RemoteCanvas c) {
+        super(rfb, c);
+        bitmapwidth  = framebufferwidth;
+        bitmapheight = framebufferheight;
+        bitmapPixels = new int[bitmapwidth * bitmapheight];
+    }
+
+    @Override
+    public boolean validDraw(int x, int y, int w, int h) {
+        return true;
+    }
+
+    @Override
+    public int offset(int x, int y) {
+        return y * bitmapwidth + x;
+    }
+
+    @Override
+    AbstractBitmapDrawable createDrawable() {
+        return new AbstractBitmapDrawable(this);
+    }
+
+    @Override
+    public void updateBitmap(int x, int y, int w, int h) {
+        // There is no bitmap to update.
+    }
+
+    @Override
+    public void updateBitmap(Bitmap b, int x, int y, int w, int h) {
+        b.getPixels(bitmapPixels, offset(x, y), bitmapwidth, 0, 0, w, h);
+        updateBitmap(x, y, w, h);
+    }
+
+    @Override
+    public void imageRect(int x, int y, int w, int h, int[] pix) {
+        for (int j = 0; j < h; j++)
+            System.arraycopy(pix, w * j, bitmapPixels, offset(x, y + j), w);
+        updateBitmap(x, y, w, h);
+    }
+
+    @Override
+    public void copyRect(int sx, int sy, int dx, int dy, int w, int h) {
+        OverlappingCopy.Copy(bitmapPixels, bitmapwidth, offset(sx, sy), offset(dx, dy), w, h);
+        updateBitmap(dx, dy, w, h);
+    }
+
+    @Override
+    void drawRect(int x, int y, int w, int h, Paint paint) {
+        int color = paint.getColor();
+        int offset = offset(x, y);
+        for (int j = 0; j < h; j++, offset += bitmapwidth)
+            Arrays.fill(bitmapPixels, offset, offset + w, color);
+        updateBitmap(x, y, w, h);
+    }
+
+    @Override
+    void scrollChanged(int newx, int newy) {
+    }
+
+    @Override
+    public void frameBufferSizeChanged() {
+        framebufferwidth  = rfb.framebufferWidth();
+        framebufferheight = rfb.framebufferHeight();
+        if (bitmapwidth < framebufferwidth || bitmapheight < framebufferheight) {
+            bitmapwidth  = framebufferwidth;
+            bitmapheight = framebufferheight;
+            bitmapPixels = new int[bitmapwidth * bitmapheight];
+        }
+    }
+
+    @Override
+    void syncScroll() {
+    }
+}
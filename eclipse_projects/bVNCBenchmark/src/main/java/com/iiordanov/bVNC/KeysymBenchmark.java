@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.iiordanov.bVNC.input.XKeySymCoverter;
+import com.iiordanov.tigervnc.rfb.UnicodeToKeysym;
+
+/**
+ * Compares UnicodeToKeysym.translate, XKeySymCoverter.ucs2keysym and XKeySymCoverter.keysym2ucs
+ * with the binary searches they replaced, looking up values picked at random from their arrays.
+ * Scores are per lookup. The results of both are checked to be the same before measuring. Run it with:
+ * java -jar target/benchmarks.jar KeysymBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeysymBenchmark {
+    static final int LOOKUPS = 4096;
+
+    private int[] unicodes = new int[LOOKUPS];
+    private long[] ucs = new long[LOOKUPS];
+    private long[] keysyms = new long[LOOKUPS];
+
+    @Setup
+    public void setup() {
+        KeysymCheck.check();
+        Random random = new Random(1);
+        for (int i = 0; i < LOOKUPS; i++) {
+            unicodes[i] = UnicodeToKeysym.table[random.nextInt(UnicodeToKeysym.table.length)][1];
+            ucs[i] = XKeySymCoverter.keysymtabbyucs[random.nextInt(XKeySymCoverter.keysymtabbyucs.length)][1];
+            keysyms[i] = XKeySymCoverter.keysymtab[random.nextInt(XKeySymCoverter.keysymtab.length)][0];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int translateSearch() {
+        int sum = 0;
+        for (int i = 0; i < LOOKUPS; i++)
+            sum += SearchedKeysyms.translate(unicodes[i]);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int translateTable() {
+        int sum = 0;
+        for (int i = 0; i < LOOKUPS; i++)
+            sum += UnicodeToKeysym.translate(unicodes[i]);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long ucs2keysymSearch() {
+        long sum = 0;
+        for (int i = 0; i < LOOKUPS; i++)
+            sum += SearchedKeysyms.ucs2keysym(ucs[i]);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long ucs2keysymTable() {
+        long sum = 0;
+        for (int i = 0; i < LOOKUPS; i++)
+            sum += XKeySymCoverter.ucs2keysym(ucs[i]);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long keysym2ucsSearch() {
+        long sum = 0;
+        for (int i = 0; i < LOOKUPS; i++)
+            sum += SearchedKeysyms.keysym2ucs(keysyms[i]);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long keysym2ucsTable() {
+        long sum = 0;
+        for (int i = 0; i < LOOKUPS; i++)
+            sum += XKeySymCoverter.keysym2ucs(keysyms[i]);
+        return sum;
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import com.iiordanov.bVNC.input.XKeySymCoverter;
+import com.iiordanov.tigervnc.rfb.UnicodeToKeysym;
+
+/**
+ * Checks that UnicodeToKeysym.translate, XKeySymCoverter.ucs2keysym and XKeySymCoverter.keysym2ucs
+ * give the same results as the binary searches of their arrays in SearchedKeysyms, for every value
+ * from -5 to 0x2ffff and for values beyond 32 bits. It runs as part of the build, so the tables
+ * built from the arrays cannot drift from them unnoticed.
+ */
+public class KeysymCheck {
+    static final int LAST = 0x2ffff;
+
+    // Values the conversions take as longs, beyond what a keysym or Unicode value can be.
+    static final long[] LARGE = {
+        0xffffffffL, 0x100000000L, 0x1000000ffL, 0x100000041L, 0x101000041L,
+        Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 0x41
+    };
+
+    public static void main(String[] args) {
+        int checked = check();
+        System.out.println("Keysym conversions match the binary searches for " + checked + " values");
+    }
+
+    /**
+     * @return The number of values checked.
+     * @throws IllegalStateException at the first value where the results differ.
+     */
+    static int check() {
+        int checked = 0;
+        for (int v = -5; v <= LAST; v++) {
+            compare(v);
+            checked++;
+        }
+        for (long v : LARGE) {
+            compare(v);
+            checked++;
+        }
+        return checked;
+    }
+
+    private static void compare(long v) {
+        if (v == (int) v && UnicodeToKeysym.translate((int) v) != SearchedKeysyms.translate((int) v))
+            throw mismatch("translate", v, UnicodeToKeysym.translate((int) v), SearchedKeysyms.translate((int) v));
+        if (XKeySymCoverter.ucs2keysym(v) != SearchedKeysyms.ucs2keysym(v))
+            throw mismatch("ucs2keysym", v, XKeySymCoverter.ucs2keysym(v), SearchedKeysyms.ucs2keysym(v));
+        if (XKeySymCoverter.keysym2ucs(v) != SearchedKeysyms.keysym2ucs(v))
+            throw mismatch("keysym2ucs", v, XKeySymCoverter.keysym2ucs(v), SearchedKeysyms.keysym2ucs(v));
+    }
+
+    private static IllegalStateException mismatch(String method, long v, long table, long searched) {
+        return new IllegalStateException(method + "(0x" + Long.toHexString(v) + ") is 0x" + Long.toHexString(table)
+                                         + ", but the binary search gives 0x" + Long.toHexString(searched));
+    }
+}
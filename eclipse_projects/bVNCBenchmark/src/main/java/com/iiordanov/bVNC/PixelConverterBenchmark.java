@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the PixelConverter methods with the per-pixel loops the decoders had before, for
+ * rectangles of 64x64, 256x256 and a whole 1920x1080 frame.
+ * <p>
+ * Like the decoders, each benchmark converts a rectangle row by row from a buffer of received
+ * bytes into a framebuffer as wide as the frame. Run it with:
+ * java -jar target/benchmarks.jar PixelConverterBenchmark
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PixelConverterBenchmark {
+    static final int FRAME_WIDTH  = 1920;
+    static final int FRAME_HEIGHT = 1080;
+
+    @Param({"64x64", "256x256", "1920x1080"})
+    String size;
+
+    private int w, h;
+    private byte[] bgrx;
+    private IntBuffer bgrxView;
+    private byte[] rgb;
+    private byte[] indexed;
+    private int[] palette = new int[256];
+    private int[] pixels;
+
+    @Setup
+    public void setup() {
+        w = Integer.parseInt(size.substring(0, size.indexOf('x')));
+        h = Integer.parseInt(size.substring(size.indexOf('x') + 1));
+        Random random = new Random(1);
+        bgrx = new byte[w * h * 4];
+        random.nextBytes(bgrx);
+        bgrxView = PixelConverter.bgrxView(bgrx);
+        rgb = new byte[w * h * 3];
+        random.nextBytes(rgb);
+        indexed = new byte[w * h];
+        random.nextBytes(indexed);
+        for (int i = 0; i < palette.length; i++)
+            palette[i] = random.nextInt(0x1000000);
+        pixels = new int[FRAME_WIDTH * FRAME_HEIGHT];
+    }
+
+    //
+    // 32bpp little-endian pixels, as in Raw and Zlib rectangles.
+    //
+
+    @Benchmark
+    public int[] bgrxLoop() {
+        for (int j = 0; j < h; j++) {
+            int offset = j * FRAME_WIDTH;
+            int s = j * w * 4;
+            for (int i = 0; i < w; i++) {
+                final int idx = s + i * 4;
+                pixels[offset + i] = (bgrx[idx + 2] & 0xff) << 16 | (bgrx[idx + 1] & 0xff) << 8 | (bgrx[idx] & 0xff);
+            }
+        }
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] bgrxConverter() {
+        for (int j = 0; j < h; j++)
+            PixelConverter.fromBGRX(bgrxView, j * w * 4, pixels, j * FRAME_WIDTH, w);
+        return pixels;
+    }
+
+    //
+    // Three-byte R, G, B pixels, as in Tight rectangles.
+    //
+
+    @Benchmark
+    public int[] rgbLoop() {
+        int boffset = 0;
+        for (int j = 0; j < h; j++) {
+            int offset = j * FRAME_WIDTH;
+            for (int i = 0; i < w; i++) {
+                int idx = boffset * 3;
+                boffset++;
+                pixels[offset++] = (rgb[idx] & 0xFF) << 16 | (rgb[idx + 1] & 0xFF) << 8 | (rgb[idx + 2] & 0xFF);
+            }
+        }
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] rgbConverter() {
+        for (int j = 0; j < h; j++)
+            PixelConverter.fromRGB(rgb, j * w * 3, pixels, j * FRAME_WIDTH, w);
+        return pixels;
+    }
+
+    //
+    // Palette indices, as in 8-bit colour and Tight palette rectangles.
+    //
+
+    @Benchmark
+    public int[] indexedLoop() {
+        int boffset = 0;
+        for (int j = 0; j < h; j++) {
+            int offset = j * FRAME_WIDTH;
+            for (int i = 0; i < w; i++)
+                pixels[offset++] = palette[0xFF & indexed[boffset++]];
+        }
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] indexedConverter() {
+        for (int j = 0; j < h; j++)
+            PixelConverter.fromIndexed(indexed, j * w, palette, pixels, j * FRAME_WIDTH, w);
+        return pixels;
+    }
+}
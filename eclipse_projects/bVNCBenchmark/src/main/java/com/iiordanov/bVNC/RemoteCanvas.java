@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import com.iiordanov.bVNC.input.RemotePointer;
+
+/**
+ * Stands in for the viewer's RemoteCanvas, which there is no need to redraw.
+ */
+public class RemoteCanvas {
+    private RemotePointer pointer = new RemotePointer();
+    private int width;
+    private int height;
+
+    RemoteCanvas(int width, int height) {
+        this.width  = width;
+        this.height = height;
+    }
+
+    public RemotePointer getPointer() {
+        return pointer;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void reDraw(int x, int y, int w, int h) {
+    }
+
+    public void reDraw(float x, float y, float w, float h) {
+    }
+}
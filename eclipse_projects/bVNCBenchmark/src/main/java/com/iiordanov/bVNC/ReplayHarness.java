@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Replays framebuffer updates through the viewer's Decoder into a headless framebuffer, and
+ * reports how fast they are decoded.
+ * <p>
+ * Usage: ReplayHarness [width height [seconds]]<br>
+ * or: ReplayHarness file.fbs [seconds]
+ * </p>
+ * <p>
+ * Without a file, a synthetic desktop is encoded once per encoding, or per kind of Tight
+ * rectangle, into a capture of the messages a server would send. Each capture is first checked
+ * to decode back into the desktop. Given an FBS file, such as a session recorded by the viewer,
+ * its server messages are replayed instead. It has to start with security type None and a
+ * ServerInit, as SessionRecorder writes them, and the desktop size may not change during it.
+ * </p>
+ * <p>
+ * Each capture is replayed after a warm up for the given number of seconds. Every replay starts
+ * with a new Decoder, since the zlib streams of a session cannot be rewound, and only reading and
+ * decoding the messages is timed. Rectangles are handed to the decoder by Decoder.handleRect(),
+ * as RfbProto does. As on the performance overlay, MB/s is the rate at which 32-bit framebuffer
+ * data is produced.
+ * </p>
+ */
+public class ReplayHarness {
+    static final int DEFAULT_WIDTH  = 1280;
+    static final int DEFAULT_HEIGHT = 800;
+    static final double DEFAULT_SECONDS = 2;
+
+    static final long WARMUP_NANOS = 1000000000L;
+    static final int MIN_REPLAYS = 5;
+
+    private final RfbProto rfb;
+    private final RemoteCanvas canvas;
+    private final HeadlessBitmapData bitmapData;
+
+    // Counted during the last replay.
+    private int rects;
+    private long pixels;
+
+    ReplayHarness(int width, int height) {
+        rfb        = new RfbProto(width, height);
+        canvas     = new RemoteCanvas(width, height);
+        bitmapData = new HeadlessBitmapData(rfb, canvas);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Capture[] captures;
+        double seconds;
+        if (args.length >= 1 && !args[0].matches("\\d+")) {
+            captures = new Capture[] { load(args[0]) };
+            seconds = (args.length >= 2) ? Double.parseDouble(args[1]) : DEFAULT_SECONDS;
+        } else {
+            int width  = (args.length >= 2) ? Integer.parseInt(args[0]) : DEFAULT_WIDTH;
+            int height = (args.length >= 2) ? Integer.parseInt(args[1]) : DEFAULT_HEIGHT;
+            seconds = (args.length >= 3) ? Double.parseDouble(args[2]) : DEFAULT_SECONDS;
+            CaptureEncoder encoder = new CaptureEncoder(SyntheticDesktop.draw(width, height), width, height);
+            CaptureEncoder.Variant[] variants = CaptureEncoder.Variant.values();
+            captures = new Capture[variants.length];
+            for (int i = 0; i < variants.length; i++)
+                captures[i] = encoder.encode(variants[i]);
+        }
+
+        System.out.println(captures[0].width + "x" + captures[0].height + " framebuffer, "
+                           + ParallelZrleDecoder.THREADS + " ZRLE threads");
+        System.out.println(String.format("%-16s %6s %9s %9s %9s %9s", "", "rects", "pixels", "bytes", "ns/pixel", "MB/s"));
+        for (Capture c : captures) {
+            ReplayHarness harness = new ReplayHarness(c.width, c.height);
+            harness.replay(c);
+            harness.check(c);
+            long nanos = harness.measure(c, (long)(seconds * 1000000000L));
+            System.out.println(String.format("%-16s %6d %9d %9d %9.2f %9.1f", c.name, harness.rects, harness.pixels,
+                                             c.data.length, (double)nanos / harness.pixels,
+                                             harness.pixels * 4 * 1000.0 / nanos));
+        }
+    }
+
+    /**
+     * Reads the server messages of an FBS file, following its protocol version, security type
+     * and ServerInit.
+     */
+    static Capture load(String fname) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream player = new SessionPlayer(fname);
+        try {
+            byte[] buf = new byte[65536];
+            int n;
+            while ((n = player.read(buf, 0, buf.length)) > 0)
+                bytes.write(buf, 0, n);
+        } finally {
+            player.close();
+        }
+        byte[] data = bytes.toByteArray();
+
+        DataInputStream is = new DataInputStream(new ByteArrayInputStream(data));
+        byte[] version = new byte[RfbProto.versionMsg_3_3.length()];
+        is.readFully(version);
+        if (!new String(version).startsWith("RFB "))
+            throw new Exception(fname + ": no RFB protocol version at the start");
+        int secType = is.readInt();
+        if (secType != RfbProto.SecTypeNone)
+            throw new Exception(fname + ": security type " + secType + " cannot be replayed");
+        int width  = is.readUnsignedShort();
+        int height = is.readUnsignedShort();
+        is.readUnsignedByte();
+        int depth = is.readUnsignedByte();
+        is.skipBytes(14);
+        int nameLength = is.readInt();
+        is.skipBytes(nameLength);
+
+        int start = data.length - is.available();
+        return new Capture(new File(fname).getName(), Arrays.copyOfRange(data, start, data.length),
+                           width, height, COLORMODEL.fromDepth(depth), new int[width * height], null);
+    }
+
+    /**
+     * Replays a capture over and over, first to warm up, then for at least the given time.
+     * @return Average time in nanoseconds taken to replay it once.
+     */
+    long measure(Capture c, long nanos) throws Exception {
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < warmupEnd)
+            replay(c);
+
+        long total = 0;
+        int n = 0;
+        while (total < nanos || n < MIN_REPLAYS) {
+            total += replay(c);
+            n++;
+        }
+        return total / n;
+    }
+
+    /**
+     * Decodes all messages of a capture, the way RfbProto does when it is not pipelined.
+     * @return Time in nanoseconds taken.
+     */
+    long replay(Capture c) throws Exception {
+        System.arraycopy(c.initial, 0, bitmapData.bitmapPixels, 0, c.initial.length);
+        Decoder decoder = new Decoder(canvas);
+        decoder.setBitmapData(bitmapData);
+        decoder.setColorModel(c.colorModel);
+        decoder.setPixelFormat(rfb);
+        rfb.setInput(c.data);
+        rects = 0;
+        pixels = 0;
+
+        long start = System.nanoTime();
+        while (rfb.is.available() > 0) {
+            int msgType = rfb.readServerMessageType();
+            switch (msgType) {
+            case RfbProto.FramebufferUpdate:
+                rfb.readFramebufferUpdate();
+                for (int i = 0; i < rfb.updateNRects; i++) {
+                    rfb.readFramebufferUpdateRectHdr();
+                    int encoding = rfb.updateRectEncoding;
+                    if (encoding == RfbProto.EncodingLastRect)
+                        break;
+                    if (encoding == RfbProto.EncodingPointerPos)
+                        continue;
+                    if (!decoder.handleRect(rfb, encoding, rfb.updateRectX, rfb.updateRectY, rfb.updateRectW, rfb.updateRectH))
+                        throw new Exception(c.name + ": cannot replay encoding " + encoding);
+                    rects++;
+                    pixels += rfb.updateRectW * rfb.updateRectH;
+                }
+                decoder.flushDamage();
+                break;
+            case RfbProto.ServerCutText:
+                rfb.readServerCutText();
+                break;
+            case RfbProto.ServerFence:
+                rfb.readFence();
+                break;
+            case RfbProto.Bell:
+            case RfbProto.EndOfContinuousUpdates:
+                break;
+            default:
+                throw new Exception(c.name + ": cannot replay message type " + msgType);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Makes sure the last replay of a capture produced the framebuffer expected, if that is known.
+     * Some encodings leave the alpha channel unset, which does not matter to the bitmap, so it is
+     * not compared.
+     */
+    void check(Capture c) throws Exception {
+        if (c.expected == null)
+            return;
+        int[] pixels = bitmapData.bitmapPixels;
+        int width = bitmapData.bitmapwidth;
+        for (int i = 0; i < c.expected.length; i++) {
+            if (((pixels[i] ^ c.expected[i]) & 0xFFFFFF) != 0)
+                throw new Exception(c.name + ": pixel (" + (i % width) + ", " + (i / width) + ") is 0x"
+                                    + Integer.toHexString(pixels[i]) + " instead of 0x" + Integer.toHexString(c.expected[i]));
+        }
+    }
+}
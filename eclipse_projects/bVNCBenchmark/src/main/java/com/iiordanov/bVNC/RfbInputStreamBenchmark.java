@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the throughput of RfbInputStream with that of the BufferedInputStream it replaced,
+ * reading from a server on the loopback interface.
+ * <p>
+ * The server sends the same 20000 messages over and over, each a 10-byte header followed by
+ * 100 bytes to 62 KB of data, and each benchmark call reads all of them the way RfbProto reads
+ * rectangles: the header with a small readFully(), and the data with a large one. The bytes
+ * counter is the throughput in bytes per second. Run it with:
+ * java -jar target/benchmarks.jar RfbInputStreamBenchmark
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 12, time = 2)
+@Fork(1)
+public class RfbInputStreamBenchmark {
+    static final int MESSAGES = 20000;
+    static final int HEADER_SIZE = 10;
+    static final int MIN_PAYLOAD = 100;
+    static final int MAX_PAYLOAD = 62 * 1024;
+
+    @Param({"RfbInputStream", "BufferedInputStream"})
+    String stream;
+
+    private int[] sizes = new int[MESSAGES];
+    private ServerSocket serverSocket;
+    private Thread server;
+    private Socket socket;
+    private DataInputStream is;
+    private byte[] header = new byte[HEADER_SIZE];
+    private byte[] payload = new byte[MAX_PAYLOAD];
+
+    /**
+     * Counts the bytes read, which JMH reports per second.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Received {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(1);
+        for (int i = 0; i < MESSAGES; i++)
+            sizes[i] = MIN_PAYLOAD + random.nextInt(MAX_PAYLOAD - MIN_PAYLOAD + 1);
+
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        server = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        }, "RfbInputStreamBenchmark server");
+        server.setDaemon(true);
+        server.start();
+
+        socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        socket.setTcpNoDelay(true);
+        InputStream in = socket.getInputStream();
+        if (stream.equals("RfbInputStream"))
+            is = new DataInputStream(new RfbInputStream(in, new SessionMetrics()));
+        else
+            is = new DataInputStream(new BufferedInputStream(in, 8192));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        socket.close();
+        serverSocket.close();
+    }
+
+    /**
+     * Sends the messages until the connection is closed, each with a single write.
+     */
+    private void serve() {
+        byte[] message = new byte[HEADER_SIZE + MAX_PAYLOAD];
+        new Random(2).nextBytes(message);
+        try {
+            Socket client = serverSocket.accept();
+            client.setTcpNoDelay(true);
+            OutputStream out = client.getOutputStream();
+            while (true) {
+                for (int i = 0; i < MESSAGES; i++) {
+                    int len = sizes[i];
+                    message[6] = (byte) (len >> 24);
+                    message[7] = (byte) (len >> 16);
+                    message[8] = (byte) (len >> 8);
+                    message[9] = (byte) len;
+                    out.write(message, 0, HEADER_SIZE + len);
+                }
+            }
+        } catch (IOException e) {
+            // The benchmark is over.
+        }
+    }
+
+    @Benchmark
+    public int read(Received received) throws IOException {
+        int sum = 0;
+        for (int i = 0; i < MESSAGES; i++) {
+            is.readFully(header, 0, HEADER_SIZE);
+            int len = (header[6] & 0xff) << 24 | (header[7] & 0xff) << 16 | (header[8] & 0xff) << 8 | (header[9] & 0xff);
+            is.readFully(payload, 0, len);
+            sum += payload[len - 1];
+            received.bytes += HEADER_SIZE + len;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Stands in for the viewer's RfbProto, reading server messages from a byte array instead of a
+ * socket. It keeps the fields, constants and read methods the decoder and ReplayHarness use, under
+ * the same names.
+ */
+class RfbProto implements RfbConnectable {
+    final static String versionMsg_3_3 = "RFB 003.003\n";
+
+    final static int SecTypeNone = 1;
+
+    final static int
+    FramebufferUpdate   = 0,
+    SetColourMapEntries = 1,
+    Bell                = 2,
+    ServerCutText       = 3,
+    EndOfContinuousUpdates = 150,
+    ServerFence         = 248;
+
+    final static int
+    EncodingRaw            = 0,
+    EncodingCopyRect       = 1,
+    EncodingRRE            = 2,
+    EncodingCoRRE          = 4,
+    EncodingHextile        = 5,
+    EncodingZlib           = 6,
+    EncodingTight          = 7,
+    EncodingZRLE           = 16,
+    EncodingTightPng       = -260,
+    EncodingXCursor        = -240,
+    EncodingRichCursor     = -239,
+    EncodingPointerPos     = -232,
+    EncodingLastRect       = -224,
+    EncodingNewFBSize      = -223;
+
+    final static int
+    HextileRaw                 = 1,
+    HextileBackgroundSpecified = 2,
+    HextileForegroundSpecified = 4,
+    HextileAnySubrects         = 8,
+    HextileSubrectsColoured    = 16;
+
+    final static int TightMinToCompress = 12;
+    final static int
+    TightExplicitFilter = 0x04,
+    TightFill           = 0x08,
+    TightJpeg           = 0x09,
+    TightPng            = 0x0A,
+    TightMaxSubencoding = 0x0A,
+    TightFilterCopy     = 0x00,
+    TightFilterPalette  = 0x01,
+    TightFilterGradient = 0x02;
+
+    DataInputStream is;
+
+    private int framebufferWidth;
+    private int framebufferHeight;
+    int bitsPerPixel = 32;
+
+    RfbProto(int framebufferWidth, int framebufferHeight) {
+        this.framebufferWidth  = framebufferWidth;
+        this.framebufferHeight = framebufferHeight;
+    }
+
+    /**
+     * Reads server messages from the start of data from now on.
+     */
+    void setInput(byte[] data) {
+        is = new DataInputStream(new ByteArrayInputStream(data));
+    }
+
+    int readServerMessageType() throws IOException {
+        return is.readUnsignedByte();
+    }
+
+    int updateNRects;
+
+    void readFramebufferUpdate() throws IOException {
+        is.readByte();
+        updateNRects = is.readUnsignedShort();
+    }
+
+    int updateRectX, updateRectY, updateRectW, updateRectH, updateRectEncoding;
+
+    void readFramebufferUpdateRectHdr() throws IOException {
+        updateRectX = is.readUnsignedShort();
+        updateRectY = is.readUnsignedShort();
+        updateRectW = is.readUnsignedShort();
+        updateRectH = is.readUnsignedShort();
+        updateRectEncoding = is.readInt();
+    }
+
+    void readServerCutText() throws IOException {
+        is.skipBytes(3);
+        int len = is.readInt();
+        is.skipBytes(len);
+    }
+
+    void readFence() throws IOException {
+        is.skipBytes(3);
+        is.readInt();
+        int len = is.readUnsignedByte();
+        is.skipBytes(len);
+    }
+
+    int copyRectSrcX, copyRectSrcY;
+
+    void readCopyRect() throws IOException {
+        copyRectSrcX = is.readUnsignedShort();
+        copyRectSrcY = is.readUnsignedShort();
+    }
+
+    int readCompactLen() throws IOException {
+        int b = is.readUnsignedByte();
+        int len = b & 0x7F;
+        if ((b & 0x80) != 0) {
+            b = is.readUnsignedByte();
+            len |= (b & 0x7F) << 7;
+            if ((b & 0x80) != 0)
+                len |= is.readUnsignedByte() << 14;
+        }
+        return len;
+    }
+
+    public void readFully(byte b[]) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte b[], int off, int len) throws IOException {
+        is.readFully(b, off, len);
+    }
+
+    synchronized void usePixelFormat() {
+    }
+
+    @Override
+    public int framebufferWidth() {
+        return framebufferWidth;
+    }
+
+    @Override
+    public int framebufferHeight() {
+        return framebufferHeight;
+    }
+
+    @Override
+    public void writeSetPixelFormat(int bitsPerPixel, int depth, boolean bigEndian,
+            boolean trueColour, int redMax, int greenMax, int blueMax,
+            int redShift, int greenShift, int blueShift, boolean fGreyScale) {
+        this.bitsPerPixel = bitsPerPixel;
+    }
+
+    // Nothing is ever sent to a server.
+
+    @Override
+    public String desktopName() {
+        return "Replay";
+    }
+
+    @Override
+    public void requestUpdate(boolean incremental) {
+    }
+
+    @Override
+    public void requestResolution(int x, int y) {
+    }
+
+    @Override
+    public void writeClientCutText(String text) {
+    }
+
+    @Override
+    public void setIsInNormalProtocol(boolean state) {
+    }
+
+    @Override
+    public boolean isInNormalProtocol() {
+        return true;
+    }
+
+    @Override
+    public String getEncoding() {
+        return "";
+    }
+
+    @Override
+    public void writePointerEvent(int x, int y, int metaState, int pointerMask) {
+    }
+
+    @Override
+    public void writeKeyEvent(int key, int metaState, boolean down) {
+    }
+
+    @Override
+    public void writeKeySyms(int[] keysyms, int count, int metaState) {
+    }
+
+    @Override
+    public void writeFramebufferUpdateRequest(int x, int y, int w, int h, boolean b) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import com.iiordanov.bVNC.input.XKeySymCoverter;
+import com.iiordanov.tigervnc.rfb.UnicodeToKeysym;
+
+/**
+ * The keysym conversions as they were before they were given CharTables, binary searching the
+ * same arrays, to check the tables against and to time them against.
+ */
+class SearchedKeysyms {
+
+    static int translate(int unicode) {
+        short[][] table = UnicodeToKeysym.table;
+        if ((unicode >= 0x20 && unicode <= 0x7e) ||
+            (unicode >= 0xa0 && unicode <= 0xff))
+            return unicode;
+
+        int min = 0;
+        int max = table.length - 1;
+        int mid;
+
+        while (max >= min) {
+            mid = (min + max) / 2;
+            if (table[mid][1] < unicode)
+                min = mid + 1;
+            else if (table[mid][1] > unicode)
+                max = mid - 1;
+            else
+                return table[mid][0];
+        }
+
+        /* no matching Unicode value found */
+        return -1;
+    }
+
+    static long ucs2keysym(long ucs) {
+        int[][] keysymtabbyucs = XKeySymCoverter.keysymtabbyucs;
+        int min = 0;
+        int max = keysymtabbyucs.length - 1;
+        int mid;
+
+        /* first check for Latin-1 characters (1:1 mapping) */
+        if ((ucs >= 0x0020 && ucs <= 0x007e) ||
+                (ucs >= 0x00a0 && ucs <= 0x00ff))
+            return ucs;
+
+        while (max >= min) {
+            mid = (min + max) / 2;
+            if (keysymtabbyucs[mid][1] < ucs)
+                min = mid + 1;
+            else if (keysymtabbyucs[mid][1] > ucs)
+                max = mid - 1;
+            else {
+                return keysymtabbyucs[mid][0];
+            }
+        }
+
+        /* no matching keysym value found, just return the unicode character */
+        return ucs;
+    }
+
+    static long keysym2ucs(long keysym) {
+        int[][] keysymtab = XKeySymCoverter.keysymtab;
+        int min = 0;
+        int max = keysymtab.length - 1;
+        int mid;
+
+        /* first check for Latin-1 characters (1:1 mapping) */
+        if ((keysym >= 0x0020 && keysym <= 0x007e) ||
+                (keysym >= 0x00a0 && keysym <= 0x00ff))
+            return keysym;
+
+        /* also check for directly encoded 24-bit UCS characters */
+        if ((keysym & 0xff000000) == 0x01000000)
+            return keysym & 0x00ffffff;
+
+        /* binary search in table */
+        while (max >= min) {
+            mid = (min + max) / 2;
+            if (keysymtab[mid][0] < keysym)
+                min = mid + 1;
+            else if (keysymtab[mid][0] > keysym)
+                max = mid - 1;
+            else {
+                /* found it */
+                return keysymtab[mid][1];
+            }
+        }
+
+        /* no matching Unicode value found */
+        return -1;
+    }
+}
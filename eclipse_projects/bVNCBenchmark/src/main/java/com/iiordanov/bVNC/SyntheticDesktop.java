@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws the same desktop-like image every time, with the kinds of content servers send: a solid
+ * background and taskbar, a window with shaded title bar and lines of two-colour text, and a
+ * window showing a photograph with smooth shading and noise.
+ */
+class SyntheticDesktop {
+    static final int BACKGROUND = 0xFF3A6EA5;
+    static final int TASKBAR    = 0xFFD4D0C8;
+    static final int BORDER     = 0xFF404040;
+    static final int PAGE       = 0xFFFFFFFF;
+    static final int INK        = 0xFF000000;
+
+    static final int TITLE_HEIGHT = 24;
+    static final int LINE_HEIGHT  = 16;
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+    private final Random random = new Random(1);
+
+    /**
+     * @return The ARGB pixels of a width by height desktop, row by row.
+     */
+    static int[] draw(int width, int height) {
+        SyntheticDesktop d = new SyntheticDesktop(width, height);
+        d.fill(0, 0, width, height, BACKGROUND);
+        d.fill(0, height - 32, width, 32, TASKBAR);
+        d.textWindow(width / 16, height / 16, width / 2, height * 3 / 4);
+        d.photoWindow(width * 5 / 8, height / 8, width / 3, height / 2);
+        return d.pixels;
+    }
+
+    private SyntheticDesktop(int width, int height) {
+        this.width  = width;
+        this.height = height;
+        this.pixels = new int[width * height];
+    }
+
+    private void fill(int x, int y, int w, int h, int color) {
+        for (int j = y; j < y + h; j++)
+            Arrays.fill(pixels, j * width + x, j * width + x + w, color);
+    }
+
+    private void frame(int x, int y, int w, int h) {
+        fill(x, y, w, h, BORDER);
+        for (int j = y + 1; j < y + TITLE_HEIGHT; j++) {
+            for (int i = x + 1; i < x + w - 1; i++) {
+                int t = (i - x) * 255 / w;
+                pixels[j * width + i] = 0xFF000000 | (10 + t * 156 / 255) << 16 | (36 + t * 166 / 255) << 8 | (106 + t * 134 / 255);
+            }
+        }
+    }
+
+    private void textWindow(int x, int y, int w, int h) {
+        frame(x, y, w, h);
+        fill(x + 1, y + TITLE_HEIGHT, w - 2, h - TITLE_HEIGHT - 1, PAGE);
+
+        // Words of 6x11 pixel glyphs, on lines of random length.
+        int left = x + 8;
+        int right = x + w - 8;
+        for (int line = y + TITLE_HEIGHT + 8; line + LINE_HEIGHT < y + h - 8; line += LINE_HEIGHT) {
+            int end = left + random.nextInt(right - left);
+            int i = left;
+            while (i < end) {
+                int chars = 2 + random.nextInt(8);
+                for (int c = 0; c < chars && i + 6 < end; c++, i += 7)
+                    glyph(i, line);
+                i += 7;
+            }
+        }
+    }
+
+    private void glyph(int x, int y) {
+        for (int j = 0; j < 11; j++)
+            for (int i = 0; i < 6; i++)
+                if (random.nextInt(3) == 0)
+                    pixels[(y + j) * width + x + i] = INK;
+    }
+
+    private void photoWindow(int x, int y, int w, int h) {
+        frame(x, y, w, h);
+        for (int j = y + TITLE_HEIGHT; j < y + h - 1; j++) {
+            for (int i = x + 1; i < x + w - 1; i++) {
+                int r = shade(128 + 100 * Math.sin(i / 37.0 + j / 53.0));
+                int g = shade(128 + 100 * Math.sin(i / 29.0 - j / 41.0 + 1));
+                int b = shade(128 + 100 * Math.sin((i + j) / 61.0 + 2));
+                pixels[j * width + i] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+    }
+
+    private int shade(double v) {
+        return Math.max(0, Math.min(255, (int)v + random.nextInt(16) - 8));
+    }
+}